@@ -0,0 +1,438 @@
+package org.lepdou.common;
+
+/**
+ * 按字存储：一个索引的bitSize个bit放在同一个long里的相邻位置
+ * ============================================================
+ * 例：bitSize = 3，每个long放 64 / 3 = 21 个值，最高的1个bit不用
+ * |*|***|***| .... |***|***|
+ *       20   ....    1   0
+ * =》
+ * MultiBitSet[i] = (words[i / 21] >>> (i % 21 * 3)) & 0b111
+ * 读一个值只需要读一个long，而按维存储需要读bitSize个BitSet。
+ * <p/>
+ * 子类只需要提供long的读写，long可以在堆上，也可以在堆外。
+ */
+abstract class AbstractPackedStorage extends MultiBitStorage {
+
+    private static final long serialVersionUID = 1L;
+
+    final int bitSize;
+
+    /**
+     * 每个long存放的值的个数
+     */
+    final int valuesPerWord;
+
+    final long valueMask;
+
+    /**
+     * 每个有效槽位的最高位
+     */
+    private final long highBits;
+
+    /**
+     * 每个有效槽位除最高位以外的低位
+     */
+    private final long lowBits;
+
+    AbstractPackedStorage(int bitSize) {
+        this.bitSize = bitSize;
+        this.valuesPerWord = 64 / bitSize;
+        this.valueMask = (1L << bitSize) - 1;
+        long slotHigh = 0;
+        long slotLow = 0;
+        for (int i = 0; i < valuesPerWord; i++) {
+            slotHigh |= 1L << (i * bitSize + bitSize - 1);
+            slotLow |= (valueMask >>> 1) << (i * bitSize);
+        }
+        this.highBits = slotHigh;
+        this.lowBits = slotLow;
+    }
+
+    /**
+     * 可以直接读取的long的个数，超出部分的值都为0
+     */
+    abstract int wordCount();
+
+    /**
+     * 读取第wordIndex个long，wordIndex小于wordCount()
+     */
+    abstract long word(int wordIndex);
+
+    /**
+     * 写入第wordIndex个long，超出wordCount()时由子类扩容
+     */
+    abstract void setWord(int wordIndex, long word);
+
+    @Override
+    MultiBitSet.Layout layout() {
+        return MultiBitSet.Layout.PACKED;
+    }
+
+    @Override
+    int get(int index) {
+        int wordIndex = index / valuesPerWord;
+        if (wordIndex >= wordCount())
+            return 0;
+        return (int) ((word(wordIndex) >>> (index % valuesPerWord * bitSize)) & valueMask);
+    }
+
+    @Override
+    void set(int index, int value) {
+        int wordIndex = index / valuesPerWord;
+        long word = 0;
+        if (wordIndex < wordCount())
+            word = word(wordIndex);
+        else if ((value & valueMask) == 0)
+            return;
+        int shift = index % valuesPerWord * bitSize;
+        setWord(wordIndex, (word & ~(valueMask << shift)) | ((value & valueMask) << shift));
+    }
+
+    /**
+     * 中间的long整个写成重复的value，只有两端的long需要保留范围外的槽位
+     */
+    @Override
+    void set(int fromIndex, int toIndex, int value) {
+        if (fromIndex >= toIndex)
+            return;
+        long pattern = repeat(value);
+        int first = fromIndex / valuesPerWord;
+        int last = (toIndex - 1) / valuesPerWord;
+        int count = wordCount();
+        for (int w = first; w <= last; w++) {
+            if (w >= count && pattern == 0)
+                break;
+            long mask = rangeMask(w, first, last, fromIndex, toIndex);
+            long old = w < count ? word(w) : 0;
+            long updated = (old & ~mask) | (pattern & mask);
+            if (updated != old) {
+                setWord(w, updated);
+                count = wordCount();
+            }
+        }
+    }
+
+    /**
+     * [fromIndex, toIndex)中值不为0的个数，按long统计
+     */
+    int nonZeroCount(int fromIndex, int toIndex) {
+        if (fromIndex >= toIndex)
+            return 0;
+        int first = fromIndex / valuesPerWord;
+        int last = (toIndex - 1) / valuesPerWord;
+        int end = Math.min(last, wordCount() - 1);
+        int count = 0;
+        for (int w = first; w <= end; w++)
+            count += Long.bitCount(nonZeroSlots(word(w)) & rangeMask(w, first, last, fromIndex, toIndex));
+        return count;
+    }
+
+    /**
+     * 每个槽位都是value的long
+     */
+    long repeat(int value) {
+        long pattern = 0;
+        for (int slot = 0; slot < valuesPerWord; slot++)
+            pattern |= (value & valueMask) << (slot * bitSize);
+        return pattern;
+    }
+
+    /**
+     * 第w个long中落在[fromIndex, toIndex)内的槽位，first、last为两端的long
+     */
+    long rangeMask(int w, int first, int last, int fromIndex, int toIndex) {
+        long mask = slotsTo(valuesPerWord - 1);
+        if (w == first)
+            mask &= slotsFrom(fromIndex % valuesPerWord);
+        if (w == last)
+            mask &= slotsTo((toIndex - 1) % valuesPerWord);
+        return mask;
+    }
+
+    /**
+     * 按long拼接values，每个long只写一次
+     */
+    @Override
+    void setAll(int offset, int[] values) {
+        long end = (long) offset + values.length;
+        int count = wordCount();
+        for (int w = offset / valuesPerWord; (long) w * valuesPerWord < end; w++) {
+            long base = (long) w * valuesPerWord;
+            long word = 0;
+            long mask = 0;
+            for (int slot = 0; slot < valuesPerWord; slot++) {
+                long index = base + slot - offset;
+                if (index >= 0 && index < values.length) {
+                    word |= (values[(int) index] & valueMask) << (slot * bitSize);
+                    mask |= valueMask << (slot * bitSize);
+                }
+            }
+            long old = w < count ? word(w) : 0;
+            long updated = (old & ~mask) | word;
+            if (updated != old) {
+                setWord(w, updated);
+                count = wordCount();
+            }
+        }
+    }
+
+    /**
+     * 每64个值取出后做一次bit矩阵转置
+     */
+    @Override
+    void readPlanes(int fromWord, int n, long[][] planes) {
+        readPlanes(fromWord, n, planes, 0);
+    }
+
+    /**
+     * 与{@link #readPlanes(int, int, long[][])}相同，结果写入planes[p][offset, offset + n)
+     */
+    void readPlanes(int fromWord, int n, long[][] planes, int offset) {
+        long[] block = new long[64];
+        int count = wordCount();
+        long index = (long) fromWord << 6;
+        int w = (int) (index / valuesPerWord);
+        int slot = (int) (index % valuesPerWord);
+        for (int k = 0; k < n; k++) {
+            long any = 0;
+            long word = w < count ? word(w) : 0;
+            for (int i = 0; i < 64; i++) {
+                block[i] = (word >>> (slot * bitSize)) & valueMask;
+                any |= block[i];
+                if (++slot == valuesPerWord) {
+                    slot = 0;
+                    word = ++w < count ? word(w) : 0;
+                }
+            }
+            if (any != 0)
+                transpose(block);
+            for (int p = 0; p < planes.length; p++)
+                planes[p][offset + k] = any == 0 ? 0 : block[p];
+        }
+    }
+
+    /**
+     * 直接取出每个槽位的第plane位，不做转置
+     */
+    @Override
+    void readPlane(int plane, int fromWord, int n, long[] words) {
+        int count = wordCount();
+        long index = (long) fromWord << 6;
+        int w = (int) (index / valuesPerWord);
+        int slot = (int) (index % valuesPerWord);
+        for (int k = 0; k < n; k++) {
+            long bits = 0;
+            long word = w < count ? word(w) : 0;
+            for (int i = 0; i < 64; i++) {
+                bits |= ((word >>> (slot * bitSize + plane)) & 1L) << i;
+                if (++slot == valuesPerWord) {
+                    slot = 0;
+                    word = ++w < count ? word(w) : 0;
+                }
+            }
+            words[k] = bits;
+        }
+    }
+
+    /**
+     * 值为0的槽位在结果中对应槽位的最高位为1
+     */
+    private long zeroSlots(long word) {
+        return ~(((word & lowBits) + lowBits) | word | lowBits) & highBits;
+    }
+
+    /**
+     * 值不为0的槽位在结果中对应槽位的最高位为1
+     */
+    private long nonZeroSlots(long word) {
+        return (((word & lowBits) + lowBits) | word) & highBits;
+    }
+
+    /**
+     * 槽位slot及其以上的槽位
+     */
+    private long slotsFrom(int slot) {
+        return -1L << (slot * bitSize);
+    }
+
+    /**
+     * 槽位slot及其以下的槽位
+     */
+    private long slotsTo(int slot) {
+        int bits = (slot + 1) * bitSize;
+        return bits >= 64 ? -1L : (1L << bits) - 1;
+    }
+
+    private int highestSlot(long slots) {
+        return (63 - Long.numberOfLeadingZeros(slots)) / bitSize;
+    }
+
+    private int lowestSlot(long slots) {
+        return Long.numberOfTrailingZeros(slots) / bitSize;
+    }
+
+    @Override
+    int length() {
+        for (int w = wordCount() - 1; w >= 0; w--) {
+            long word = word(w);
+            if (word != 0)
+                return w * valuesPerWord + highestSlot(nonZeroSlots(word)) + 1;
+        }
+        return 0;
+    }
+
+    @Override
+    void planeCardinality(long[] counts) {
+        long lowestBitPerSlot = highBits >>> (bitSize - 1);
+        int n = wordCount();
+        for (int w = 0; w < n; w++) {
+            long word = word(w);
+            if (word != 0)
+                for (int p = 0; p < bitSize; p++)
+                    counts[p] += Long.bitCount(word & (lowestBitPerSlot << p));
+        }
+    }
+
+    @Override
+    int nextSetBit(int fromIndex) {
+        int n = wordCount();
+        int w = fromIndex / valuesPerWord;
+        if (w >= n)
+            return -1;
+        long slots = nonZeroSlots(word(w)) & slotsFrom(fromIndex % valuesPerWord);
+        while (true) {
+            if (slots != 0)
+                return w * valuesPerWord + lowestSlot(slots);
+            if (++w == n)
+                return -1;
+            slots = nonZeroSlots(word(w));
+        }
+    }
+
+    @Override
+    int previousSetBit(int fromIndex) {
+        int n = wordCount();
+        if (n == 0)
+            return -1;
+        int w = fromIndex / valuesPerWord;
+        long slots;
+        if (w >= n) {
+            w = n - 1;
+            slots = nonZeroSlots(word(w));
+        } else {
+            slots = nonZeroSlots(word(w)) & slotsTo(fromIndex % valuesPerWord);
+        }
+        while (true) {
+            if (slots != 0)
+                return w * valuesPerWord + highestSlot(slots);
+            if (w-- == 0)
+                return -1;
+            slots = nonZeroSlots(word(w));
+        }
+    }
+
+    @Override
+    int nextClearBit(int fromIndex) {
+        int n = wordCount();
+        int w = fromIndex / valuesPerWord;
+        if (w >= n)
+            return fromIndex;
+        long slots = zeroSlots(word(w)) & slotsFrom(fromIndex % valuesPerWord);
+        while (true) {
+            if (slots != 0)
+                return w * valuesPerWord + lowestSlot(slots);
+            if (++w == n)
+                return w * valuesPerWord;
+            slots = zeroSlots(word(w));
+        }
+    }
+
+    @Override
+    int previousClearBit(int fromIndex) {
+        int w = fromIndex / valuesPerWord;
+        if (w >= wordCount())
+            return fromIndex;
+        long slots = zeroSlots(word(w)) & slotsTo(fromIndex % valuesPerWord);
+        while (true) {
+            if (slots != 0)
+                return w * valuesPerWord + highestSlot(slots);
+            if (w-- == 0)
+                return -1;
+            slots = zeroSlots(word(w));
+        }
+    }
+
+    @Override
+    int size() {
+        return wordCount() * 64;
+    }
+
+    /**
+     * 逐个long取出旧的槽位，直接拼接到新的long中
+     */
+    @Override
+    MultiBitStorage resize(int newBitSize) {
+        PackedStorage storage = new PackedStorage(newBitSize);
+        int newValuesPerWord = 64 / newBitSize;
+        int length = length();
+        int n = (int) (((long) length + valuesPerWord - 1) / valuesPerWord);
+        long newWord = 0;
+        int newSlot = 0;
+        int newWordIndex = 0;
+        for (int w = 0; w < n; w++) {
+            long word = word(w);
+            for (int slot = 0; slot < valuesPerWord; slot++) {
+                newWord |= ((word >>> (slot * bitSize)) & valueMask) << (newSlot * newBitSize);
+                if (++newSlot == newValuesPerWord) {
+                    if (newWord != 0)
+                        storage.setWord(newWordIndex, newWord);
+                    newWordIndex++;
+                    newSlot = 0;
+                    newWord = 0;
+                }
+            }
+        }
+        if (newWord != 0)
+            storage.setWord(newWordIndex, newWord);
+        return storage;
+    }
+
+    /**
+     * 复制出的存储总是在堆上
+     */
+    @Override
+    MultiBitStorage get(int fromIndex, int toIndex) {
+        PackedStorage storage = new PackedStorage(bitSize);
+        for (int i = nextSetBit(fromIndex); i >= 0 && i < toIndex; i = nextSetBit(i + 1))
+            storage.set(i - fromIndex, get(i));
+        return storage;
+    }
+
+    @Override
+    boolean contentEquals(MultiBitStorage other) {
+        if (!(other instanceof AbstractPackedStorage))
+            return super.contentEquals(other);
+        AbstractPackedStorage set = (AbstractPackedStorage) other;
+        if (set.bitSize != bitSize)
+            return false;
+        int count = wordCount();
+        int otherCount = set.wordCount();
+        int n = Math.max(count, otherCount);
+        for (int i = 0; i < n; i++) {
+            long a = i < count ? word(i) : 0;
+            long b = i < otherCount ? set.word(i) : 0;
+            if (a != b)
+                return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = 1234;
+        for (int i = wordCount(); --i >= 0; )
+            h ^= word(i) * (i + 1);
+        return (int) ((h >> 32) ^ h);
+    }
+}
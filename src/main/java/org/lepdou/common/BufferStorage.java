@@ -0,0 +1,109 @@
+package org.lepdou.common;
+
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * 堆外的按字存储。
+ * long按段存放在direct ByteBuffer中，每段 2^segmentShift 个long，
+ * 段在第一次写入非0值时才分配，扩容时只复制段的引用，不复制数据。
+ * 未分配的段读出来都是0。
+ */
+class BufferStorage extends AbstractPackedStorage {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 默认每段 64K 个long，即512KB
+     */
+    static final int DEFAULT_SEGMENT_SHIFT = 16;
+
+    final int segmentShift;
+
+    final int segmentMask;
+
+    ByteBuffer[] segments;
+
+    BufferStorage(int bitSize) {
+        this(bitSize, DEFAULT_SEGMENT_SHIFT);
+    }
+
+    BufferStorage(int bitSize, int segmentShift) {
+        super(bitSize);
+        this.segmentShift = segmentShift;
+        this.segmentMask = (1 << segmentShift) - 1;
+        this.segments = new ByteBuffer[0];
+    }
+
+    /**
+     * 分配第segmentIndex段
+     */
+    ByteBuffer allocateSegment(int segmentIndex) {
+        return ByteBuffer.allocateDirect(8 << segmentShift).order(ByteOrder.nativeOrder());
+    }
+
+    ByteBuffer[] segments() {
+        ByteBuffer[] segments = this.segments;
+        if (segments == null)
+            throw new IllegalStateException("MultiBitSet has been closed");
+        return segments;
+    }
+
+    @Override
+    int wordCount() {
+        return segments().length << segmentShift;
+    }
+
+    @Override
+    long word(int wordIndex) {
+        ByteBuffer segment = segments()[wordIndex >>> segmentShift];
+        if (segment == null)
+            return 0;
+        return segment.getLong((wordIndex & segmentMask) << 3);
+    }
+
+    @Override
+    void setWord(int wordIndex, long word) {
+        ByteBuffer[] segments = segments();
+        int segmentIndex = wordIndex >>> segmentShift;
+        if (segmentIndex >= segments.length) {
+            if (word == 0)
+                return;
+            segments = this.segments = Arrays.copyOf(segments, Math.max(2 * segments.length, segmentIndex + 1));
+        }
+        ByteBuffer segment = segments[segmentIndex];
+        if (segment == null) {
+            if (word == 0)
+                return;
+            segment = segments[segmentIndex] = allocateSegment(segmentIndex);
+        }
+        segment.putLong((wordIndex & segmentMask) << 3, word);
+    }
+
+    /**
+     * 堆外和映射文件的大小与布局固定，不支持修改bitSize
+     */
+    @Override
+    MultiBitStorage resize(int newBitSize) {
+        throw new UnsupportedOperationException("bitSize of off-heap MultiBitSet can not be changed");
+    }
+
+    /**
+     * 释放所有段，之后的任何访问都会抛出IllegalStateException
+     */
+    void close() {
+        ByteBuffer[] segments = this.segments;
+        this.segments = null;
+        if (segments != null)
+            for (ByteBuffer segment : segments)
+                DirectBuffers.free(segment);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        throw new NotSerializableException("off-heap MultiBitSet can not be serialized");
+    }
+}
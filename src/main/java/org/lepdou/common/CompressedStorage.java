@@ -0,0 +1,927 @@
+package org.lepdou.common;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * 压缩存储，思路与Roaring Bitmap相同。
+ * ============================================================
+ * 索引空间按每 2^16 个索引切分成块，块内的值用以下一种容器表示：
+ *   1.ArrayContainer 按索引排序的 [低16位索引, 值] 数组，只存非0值，适合稀疏的块
+ *   2.DenseContainer 按字存储全部 2^16 个值，适合稠密的块
+ *   3.RunContainer   [起始索引, 结束索引, 值] 的数组，适合大段连续相同值的块
+ * 全部为0的块不分配容器。占用的内存与非0值的个数成正比，而不是与最大的索引成正比。
+ * <p/>
+ * 写入时ArrayContainer与DenseContainer按占用内存自动转换，
+ * RunContainer在{@link #optimize()}或者范围写入时选出，在其中写入过多零散的值时转换为另外两种容器。
+ * <p/>
+ * 范围写入覆盖整块时，块直接替换为只有一段的RunContainer（值为0时直接释放），
+ * 与块的大小无关，之后在其中零散写入也只是拆分段。
+ */
+class CompressedStorage extends MultiBitStorage {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int CHUNK_SHIFT = 16;
+
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    static final int CHUNK_WORDS = CHUNK_SIZE >>> 6;
+
+    private int bitSize;
+
+    private int valueMask;
+
+    private Container[] containers;
+
+    CompressedStorage(int bitSize) {
+        this.bitSize = bitSize;
+        this.valueMask = (int) ((1L << bitSize) - 1);
+        this.containers = new Container[0];
+    }
+
+    @Override
+    MultiBitSet.Layout layout() {
+        return MultiBitSet.Layout.COMPRESSED;
+    }
+
+    private static long base(int chunkIndex) {
+        return (long) chunkIndex << CHUNK_SHIFT;
+    }
+
+    @Override
+    int get(int index) {
+        int chunkIndex = index >>> CHUNK_SHIFT;
+        if (chunkIndex >= containers.length || containers[chunkIndex] == null)
+            return 0;
+        return containers[chunkIndex].get(index & CHUNK_MASK);
+    }
+
+    @Override
+    void set(int index, int value) {
+        value &= valueMask;
+        int chunkIndex = index >>> CHUNK_SHIFT;
+        Container container = chunkIndex < containers.length ? containers[chunkIndex] : null;
+        if (container == null) {
+            if (value == 0)
+                return;
+            if (chunkIndex >= containers.length)
+                containers = Arrays.copyOf(containers, Math.max(2 * containers.length, chunkIndex + 1));
+            container = new ArrayContainer(bitSize);
+        }
+        containers[chunkIndex] = container.set(index & CHUNK_MASK, value);
+    }
+
+    @Override
+    void set(int fromIndex, int toIndex, int value) {
+        if (fromIndex >= toIndex)
+            return;
+        value &= valueMask;
+        int firstChunk = fromIndex >>> CHUNK_SHIFT;
+        int lastChunk = (toIndex - 1) >>> CHUNK_SHIFT;
+        if (value != 0 && lastChunk >= containers.length)
+            containers = Arrays.copyOf(containers, Math.max(2 * containers.length, lastChunk + 1));
+        lastChunk = Math.min(lastChunk, containers.length - 1);
+        for (int c = firstChunk; c <= lastChunk; c++) {
+            int lo = c == firstChunk ? fromIndex & CHUNK_MASK : 0;
+            int hi = base(c + 1) >= toIndex ? (toIndex - 1) & CHUNK_MASK : CHUNK_MASK;
+            Container container = containers[c];
+            if (lo == 0 && hi == CHUNK_MASK) {
+                containers[c] = value == 0 ? null : RunContainer.full(bitSize, value);
+            } else if (container != null) {
+                containers[c] = container.set(lo, hi, value);
+            } else if (value != 0) {
+                containers[c] = new RunContainer(bitSize).set(lo, hi, value);
+            }
+        }
+    }
+
+    @Override
+    MultiBitStorage resize(int newBitSize) {
+        for (int c = 0; c < containers.length; c++)
+            if (containers[c] != null)
+                containers[c] = containers[c].resize(newBitSize);
+        bitSize = newBitSize;
+        valueMask = (int) ((1L << newBitSize) - 1);
+        return this;
+    }
+
+    /**
+     * 为每个块重新选择占用内存最少的容器
+     */
+    void optimize() {
+        for (int c = 0; c < containers.length; c++)
+            if (containers[c] != null)
+                containers[c] = containers[c].optimize();
+    }
+
+    @Override
+    int length() {
+        for (int c = containers.length - 1; c >= 0; c--)
+            if (containers[c] != null)
+                return (int) (base(c) + containers[c].previousNonZero(CHUNK_MASK) + 1);
+        return 0;
+    }
+
+    @Override
+    void planeCardinality(long[] counts) {
+        for (Container container : containers)
+            if (container != null)
+                container.planeCardinality(counts);
+    }
+
+    @Override
+    int nextSetBit(int fromIndex) {
+        int low = fromIndex & CHUNK_MASK;
+        for (int c = fromIndex >>> CHUNK_SHIFT; c < containers.length; c++, low = 0) {
+            if (containers[c] != null) {
+                int next = containers[c].nextNonZero(low);
+                if (next >= 0)
+                    return (int) (base(c) + next);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    int previousSetBit(int fromIndex) {
+        int c = fromIndex >>> CHUNK_SHIFT;
+        int low = fromIndex & CHUNK_MASK;
+        if (c >= containers.length) {
+            c = containers.length - 1;
+            low = CHUNK_MASK;
+        }
+        for (; c >= 0; c--, low = CHUNK_MASK) {
+            if (containers[c] != null) {
+                int previous = containers[c].previousNonZero(low);
+                if (previous >= 0)
+                    return (int) (base(c) + previous);
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    int nextClearBit(int fromIndex) {
+        int low = fromIndex & CHUNK_MASK;
+        for (int c = fromIndex >>> CHUNK_SHIFT; c < containers.length; c++, low = 0) {
+            if (containers[c] == null)
+                return (int) (base(c) + low);
+            int next = containers[c].nextZero(low);
+            if (next < CHUNK_SIZE)
+                return (int) (base(c) + next);
+        }
+        return (int) Math.max(fromIndex, base(containers.length));
+    }
+
+    @Override
+    int previousClearBit(int fromIndex) {
+        int low = fromIndex & CHUNK_MASK;
+        for (int c = fromIndex >>> CHUNK_SHIFT; c >= 0; c--, low = CHUNK_MASK) {
+            if (c >= containers.length || containers[c] == null)
+                return (int) (base(c) + low);
+            int previous = containers[c].previousZero(low);
+            if (previous >= 0)
+                return (int) (base(c) + previous);
+        }
+        return -1;
+    }
+
+    @Override
+    int size() {
+        long size = 0;
+        for (Container container : containers)
+            if (container != null)
+                size += container.sizeInBits();
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 按块交给容器读取，没有容器的块为0
+     */
+    @Override
+    void readPlanes(int fromWord, int n, long[][] planes) {
+        for (int k = 0; k < n; ) {
+            int word = fromWord + k;
+            int c = word >>> (CHUNK_SHIFT - 6);
+            int w = word & (CHUNK_WORDS - 1);
+            int count = Math.min(n - k, CHUNK_WORDS - w);
+            for (long[] plane : planes)
+                Arrays.fill(plane, k, k + count, 0);
+            if (c < containers.length && containers[c] != null)
+                containers[c].readPlanes(w, count, planes, k);
+            k += count;
+        }
+    }
+
+    /**
+     * 把words[offset]开始的long中的[from, to)位设置为1
+     */
+    static void orRange(long[] words, int offset, int from, int to) {
+        int first = from >>> 6;
+        int last = (to - 1) >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+        if (first == last) {
+            words[offset + first] |= firstMask & lastMask;
+            return;
+        }
+        words[offset + first] |= firstMask;
+        Arrays.fill(words, offset + first + 1, offset + last, -1L);
+        words[offset + last] |= lastMask;
+    }
+
+    @Override
+    MultiBitStorage get(int fromIndex, int toIndex) {
+        CompressedStorage storage = new CompressedStorage(bitSize);
+        for (int i = nextSetBit(fromIndex); i >= 0 && i < toIndex; i = nextSetBit(i + 1))
+            storage.set(i - fromIndex, get(i));
+        return storage;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = 1234;
+        for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1))
+            h = 31 * h + (long) i * 0x9E3779B9L + get(i);
+        return (int) ((h >> 32) ^ h);
+    }
+
+    /**
+     * 一个块内 2^16 个值的容器。
+     * 写操作返回写入后应该使用的容器：可能是自身、转换后的新容器，全部为0时返回null。
+     */
+    abstract static class Container implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final int bitSize;
+
+        Container(int bitSize) {
+            this.bitSize = bitSize;
+        }
+
+        abstract int get(int low);
+
+        abstract Container set(int low, int value);
+
+        /**
+         * 把[lo, hi]都设置为value
+         */
+        Container set(int lo, int hi, int value) {
+            if (hi - lo >= 64)
+                return toRunContainer().set(lo, hi, value);
+            Container container = this;
+            for (int i = lo; i <= hi; i++) {
+                if (container == null) {
+                    if (value == 0)
+                        return null;
+                    container = new ArrayContainer(bitSize);
+                }
+                container = container.set(i, value);
+            }
+            return container;
+        }
+
+        /**
+         * 非0值的个数
+         */
+        abstract int cardinality();
+
+        /**
+         * low（包含）之后第一个非0值的位置，不存在时返回-1
+         */
+        abstract int nextNonZero(int low);
+
+        /**
+         * low（包含）之前第一个非0值的位置，不存在时返回-1
+         */
+        abstract int previousNonZero(int low);
+
+        /**
+         * low（包含）之后第一个0的位置，不存在时返回CHUNK_SIZE
+         */
+        abstract int nextZero(int low);
+
+        /**
+         * low（包含）之前第一个0的位置，不存在时返回-1
+         */
+        abstract int previousZero(int low);
+
+        abstract void planeCardinality(long[] counts);
+
+        /**
+         * 把块内第fromWord个long开始的n个long按维写入planes[p][offset, offset + n)，
+         * 调用前这些long都为0
+         */
+        abstract void readPlanes(int fromWord, int n, long[][] planes, int offset);
+
+        abstract long sizeInBits();
+
+        /**
+         * 修改每个值的bit数，返回新的容器
+         */
+        abstract Container resize(int newBitSize);
+
+        /**
+         * ArrayContainer占用的内存：每个非0值2字节索引 + 4字节值
+         */
+        static long arrayBytes(int cardinality) {
+            return cardinality * 6L;
+        }
+
+        /**
+         * DenseContainer占用的内存
+         */
+        static long denseBytes(int bitSize) {
+            return CHUNK_SIZE / 8L * bitSize;
+        }
+
+        /**
+         * RunContainer占用的内存：每段2字节起始 + 2字节结束 + 4字节值
+         */
+        static long runBytes(int runs) {
+            return runs * 8L;
+        }
+
+        /**
+         * 相同值的连续段的个数
+         */
+        int runCount() {
+            int runs = 0;
+            int previous = -2;
+            int previousValue = 0;
+            for (int i = nextNonZero(0); i >= 0; i = i == CHUNK_MASK ? -1 : nextNonZero(i + 1)) {
+                int value = get(i);
+                if (i != previous + 1 || value != previousValue)
+                    runs++;
+                previous = i;
+                previousValue = value;
+            }
+            return runs;
+        }
+
+        /**
+         * 转换为占用内存最少的容器
+         */
+        Container optimize() {
+            int cardinality = cardinality();
+            long array = arrayBytes(cardinality);
+            long dense = denseBytes(bitSize);
+            long run = runBytes(runCount());
+            if (run < array && run < dense)
+                return toRunContainer();
+            if (array <= dense)
+                return this instanceof ArrayContainer ? this : copyTo(new ArrayContainer(bitSize));
+            return this instanceof DenseContainer ? this : copyTo(new DenseContainer(bitSize));
+        }
+
+        RunContainer toRunContainer() {
+            if (this instanceof RunContainer)
+                return (RunContainer) this;
+            //逐段追加，不经过set中的转换判断
+            RunContainer container = new RunContainer(bitSize);
+            for (int i = nextNonZero(0); i >= 0; i = i == CHUNK_MASK ? -1 : nextNonZero(i + 1))
+                container.insertRun(container.n, i, i, get(i));
+            return container;
+        }
+
+        Container copyTo(Container container) {
+            for (int i = nextNonZero(0); i >= 0; i = i == CHUNK_MASK ? -1 : nextNonZero(i + 1))
+                container = container.set(i, get(i));
+            return container;
+        }
+    }
+
+    /**
+     * 只存非0值，索引有序
+     */
+    static class ArrayContainer extends Container {
+
+        private static final long serialVersionUID = 1L;
+
+        private char[] keys;
+
+        private int[] values;
+
+        private int n;
+
+        ArrayContainer(int bitSize) {
+            super(bitSize);
+            keys = new char[4];
+            values = new int[4];
+        }
+
+        private int indexOf(int low) {
+            return Arrays.binarySearch(keys, 0, n, (char) low);
+        }
+
+        @Override
+        int get(int low) {
+            int i = indexOf(low);
+            return i >= 0 ? values[i] : 0;
+        }
+
+        @Override
+        Container set(int low, int value) {
+            int i = indexOf(low);
+            if (i >= 0) {
+                if (value != 0) {
+                    values[i] = value;
+                    return this;
+                }
+                System.arraycopy(keys, i + 1, keys, i, n - i - 1);
+                System.arraycopy(values, i + 1, values, i, n - i - 1);
+                n--;
+                return n == 0 ? null : this;
+            }
+            if (value == 0)
+                return this;
+            if (arrayBytes(n + 1) > denseBytes(bitSize))
+                return copyTo(new DenseContainer(bitSize)).set(low, value);
+            i = -i - 1;
+            if (n == keys.length) {
+                int capacity = Math.min(CHUNK_SIZE, n + (n >> 1) + 1);
+                keys = Arrays.copyOf(keys, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            System.arraycopy(keys, i, keys, i + 1, n - i);
+            System.arraycopy(values, i, values, i + 1, n - i);
+            keys[i] = (char) low;
+            values[i] = value;
+            n++;
+            return this;
+        }
+
+        @Override
+        int cardinality() {
+            return n;
+        }
+
+        @Override
+        int nextNonZero(int low) {
+            int i = indexOf(low);
+            if (i < 0)
+                i = -i - 1;
+            return i < n ? keys[i] : -1;
+        }
+
+        @Override
+        int previousNonZero(int low) {
+            int i = indexOf(low);
+            if (i < 0)
+                i = -i - 2;
+            return i >= 0 ? keys[i] : -1;
+        }
+
+        @Override
+        int nextZero(int low) {
+            int i = indexOf(low);
+            if (i < 0)
+                return low;
+            while (i + 1 < n && keys[i + 1] == keys[i] + 1)
+                i++;
+            return keys[i] + 1;
+        }
+
+        @Override
+        int previousZero(int low) {
+            int i = indexOf(low);
+            if (i < 0)
+                return low;
+            while (i > 0 && keys[i - 1] == keys[i] - 1)
+                i--;
+            return keys[i] - 1;
+        }
+
+        /**
+         * 二分查找到第一个落在范围内的索引，再逐个把值的各位写入对应的维
+         */
+        @Override
+        void readPlanes(int fromWord, int n, long[][] planes, int offset) {
+            int from = fromWord << 6;
+            int to = (fromWord + n) << 6;
+            int i = indexOf(from);
+            if (i < 0)
+                i = -i - 1;
+            for (; i < this.n && keys[i] < to; i++) {
+                int low = keys[i];
+                int k = offset + (low >>> 6) - fromWord;
+                for (int value = values[i]; value != 0; value &= value - 1) {
+                    int p = Integer.numberOfTrailingZeros(value);
+                    if (p < planes.length)
+                        planes[p][k] |= 1L << low;
+                }
+            }
+        }
+
+        @Override
+        void planeCardinality(long[] counts) {
+            for (int i = 0; i < n; i++)
+                for (int value = values[i]; value != 0; value &= value - 1)
+                    counts[Integer.numberOfTrailingZeros(value)]++;
+        }
+
+        @Override
+        long sizeInBits() {
+            return keys.length * 16L + values.length * 32L;
+        }
+
+        @Override
+        Container resize(int newBitSize) {
+            ArrayContainer container = new ArrayContainer(newBitSize);
+            container.keys = keys;
+            container.values = values;
+            container.n = n;
+            return container;
+        }
+    }
+
+    /**
+     * 按字存储块内全部的值
+     */
+    static class DenseContainer extends Container {
+
+        private static final long serialVersionUID = 1L;
+
+        private final PackedStorage packed;
+
+        private int cardinality;
+
+        DenseContainer(int bitSize) {
+            this(bitSize, new PackedStorage(bitSize), 0);
+        }
+
+        private DenseContainer(int bitSize, PackedStorage packed, int cardinality) {
+            super(bitSize);
+            this.packed = packed;
+            this.cardinality = cardinality;
+        }
+
+        @Override
+        int get(int low) {
+            return packed.get(low);
+        }
+
+        @Override
+        Container set(int low, int value) {
+            int old = packed.get(low);
+            if (old == value)
+                return this;
+            packed.set(low, value);
+            if (old == 0)
+                cardinality++;
+            if (value == 0) {
+                cardinality--;
+                if (cardinality == 0)
+                    return null;
+                //留出余量，避免在阈值附近反复转换
+                if (arrayBytes(cardinality) * 2 < denseBytes(bitSize))
+                    return copyTo(new ArrayContainer(bitSize));
+            }
+            return this;
+        }
+
+        /**
+         * 小范围按long写入，不值得为此转换成RunContainer
+         */
+        @Override
+        Container set(int lo, int hi, int value) {
+            if (hi - lo >= CHUNK_SIZE / 2)
+                return super.set(lo, hi, value);
+            int old = packed.nonZeroCount(lo, hi + 1);
+            packed.set(lo, hi + 1, value);
+            cardinality += (value == 0 ? 0 : hi - lo + 1) - old;
+            if (cardinality == 0)
+                return null;
+            if (arrayBytes(cardinality) * 2 < denseBytes(bitSize))
+                return copyTo(new ArrayContainer(bitSize));
+            return this;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        int nextNonZero(int low) {
+            return packed.nextSetBit(low);
+        }
+
+        @Override
+        int previousNonZero(int low) {
+            return packed.previousSetBit(low);
+        }
+
+        @Override
+        int nextZero(int low) {
+            return Math.min(packed.nextClearBit(low), CHUNK_SIZE);
+        }
+
+        @Override
+        int previousZero(int low) {
+            return packed.previousClearBit(low);
+        }
+
+        @Override
+        void readPlanes(int fromWord, int n, long[][] planes, int offset) {
+            packed.readPlanes(fromWord, n, planes, offset);
+        }
+
+        @Override
+        void planeCardinality(long[] counts) {
+            packed.planeCardinality(counts);
+        }
+
+        @Override
+        long sizeInBits() {
+            return packed.size();
+        }
+
+        @Override
+        Container resize(int newBitSize) {
+            return new DenseContainer(newBitSize, (PackedStorage) packed.resize(newBitSize), cardinality);
+        }
+    }
+
+    /**
+     * 相同值的连续段，段按起始位置有序且互不重叠，只存非0值的段
+     */
+    static class RunContainer extends Container {
+
+        private static final long serialVersionUID = 1L;
+
+        private char[] starts;
+
+        private char[] ends;
+
+        private int[] values;
+
+        private int n;
+
+        private int cardinality;
+
+        RunContainer(int bitSize) {
+            this(bitSize, 4);
+        }
+
+        RunContainer(int bitSize, int capacity) {
+            super(bitSize);
+            starts = new char[capacity];
+            ends = new char[capacity];
+            values = new int[capacity];
+        }
+
+        /**
+         * 整块都是value
+         */
+        static RunContainer full(int bitSize, int value) {
+            RunContainer container = new RunContainer(bitSize, 1);
+            container.insertRun(0, 0, CHUNK_MASK, value);
+            return container;
+        }
+
+        /**
+         * 起始位置不大于low的最后一段，不存在时返回-1
+         */
+        private int runBefore(int low) {
+            int lo = 0;
+            int hi = n - 1;
+            while (lo <= hi) {
+                int mid = (lo + hi) >>> 1;
+                if (starts[mid] <= low)
+                    lo = mid + 1;
+                else
+                    hi = mid - 1;
+            }
+            return hi;
+        }
+
+        /**
+         * 包含low的段，不存在时返回-1
+         */
+        private int runOf(int low) {
+            int r = runBefore(low);
+            return r >= 0 && ends[r] >= low ? r : -1;
+        }
+
+        @Override
+        int get(int low) {
+            int r = runOf(low);
+            return r >= 0 ? values[r] : 0;
+        }
+
+        @Override
+        Container set(int low, int value) {
+            int r = runOf(low);
+            int old = r >= 0 ? values[r] : 0;
+            if (old == value)
+                return this;
+            if (r >= 0) {
+                //把low从所在的段中拆出来
+                int start = starts[r];
+                int end = ends[r];
+                removeRun(r);
+                if (start < low)
+                    insertRun(runBefore(start) + 1, start, low - 1, old);
+                if (low < end)
+                    insertRun(runBefore(low + 1) + 1, low + 1, end, old);
+            }
+            if (value != 0)
+                insertRun(runBefore(low) + 1, low, low, value);
+            if (cardinality == 0)
+                return null;
+            long run = runBytes(n);
+            if (run > arrayBytes(cardinality) || run > denseBytes(bitSize))
+                return optimize();
+            return this;
+        }
+
+        @Override
+        Container set(int lo, int hi, int value) {
+            int first = runBefore(lo);
+            int last = runBefore(hi);
+            int leftStart = -1;
+            int leftValue = 0;
+            int rightEnd = -1;
+            int rightValue = 0;
+            if (first >= 0 && ends[first] >= lo) {
+                if (starts[first] < lo) {
+                    leftStart = starts[first];
+                    leftValue = values[first];
+                }
+            } else {
+                first++;
+            }
+            if (last >= 0 && ends[last] > hi) {
+                rightEnd = ends[last];
+                rightValue = values[last];
+            }
+            //删除与[lo, hi]重叠的段，再补回两端露在外面的部分
+            if (first <= last)
+                removeRuns(first, last);
+            if (leftStart >= 0)
+                insertRun(runBefore(leftStart) + 1, leftStart, lo - 1, leftValue);
+            if (value != 0)
+                insertRun(runBefore(lo) + 1, lo, hi, value);
+            if (rightEnd >= 0)
+                insertRun(runBefore(hi + 1) + 1, hi + 1, rightEnd, rightValue);
+            if (cardinality == 0)
+                return null;
+            long run = runBytes(n);
+            if (run > arrayBytes(cardinality) || run > denseBytes(bitSize))
+                return optimize();
+            return this;
+        }
+
+        private void removeRun(int r) {
+            removeRuns(r, r);
+        }
+
+        /**
+         * 删除第first到第last段（都包含）
+         */
+        private void removeRuns(int first, int last) {
+            for (int r = first; r <= last; r++)
+                cardinality -= ends[r] - starts[r] + 1;
+            int count = last - first + 1;
+            System.arraycopy(starts, last + 1, starts, first, n - last - 1);
+            System.arraycopy(ends, last + 1, ends, first, n - last - 1);
+            System.arraycopy(values, last + 1, values, first, n - last - 1);
+            n -= count;
+        }
+
+        /**
+         * 在位置r插入段[start, end]，并与相邻的相同值的段合并
+         */
+        private void insertRun(int r, int start, int end, int value) {
+            cardinality += end - start + 1;
+            boolean mergePrevious = r > 0 && ends[r - 1] + 1 == start && values[r - 1] == value;
+            boolean mergeNext = r < n && starts[r] == end + 1 && values[r] == value;
+            if (mergePrevious && mergeNext) {
+                int nextEnd = ends[r];
+                int nextLength = ends[r] - starts[r] + 1;
+                removeRun(r);
+                cardinality += nextLength;
+                ends[r - 1] = (char) nextEnd;
+                return;
+            }
+            if (mergePrevious) {
+                ends[r - 1] = (char) end;
+                return;
+            }
+            if (mergeNext) {
+                starts[r] = (char) start;
+                return;
+            }
+            if (n == starts.length) {
+                int capacity = n + (n >> 1) + 1;
+                starts = Arrays.copyOf(starts, capacity);
+                ends = Arrays.copyOf(ends, capacity);
+                values = Arrays.copyOf(values, capacity);
+            }
+            System.arraycopy(starts, r, starts, r + 1, n - r);
+            System.arraycopy(ends, r, ends, r + 1, n - r);
+            System.arraycopy(values, r, values, r + 1, n - r);
+            starts[r] = (char) start;
+            ends[r] = (char) end;
+            values[r] = value;
+            n++;
+        }
+
+        @Override
+        int cardinality() {
+            return cardinality;
+        }
+
+        @Override
+        int runCount() {
+            return n;
+        }
+
+        @Override
+        int nextNonZero(int low) {
+            int r = runBefore(low);
+            if (r >= 0 && ends[r] >= low)
+                return low;
+            return r + 1 < n ? starts[r + 1] : -1;
+        }
+
+        @Override
+        int previousNonZero(int low) {
+            int r = runBefore(low);
+            if (r < 0)
+                return -1;
+            return Math.min(ends[r], low);
+        }
+
+        @Override
+        int nextZero(int low) {
+            int r = runOf(low);
+            if (r < 0)
+                return low;
+            while (r + 1 < n && starts[r + 1] == ends[r] + 1)
+                r++;
+            return ends[r] + 1;
+        }
+
+        @Override
+        int previousZero(int low) {
+            int r = runOf(low);
+            if (r < 0)
+                return low;
+            while (r > 0 && ends[r - 1] == starts[r] - 1)
+                r--;
+            return starts[r] - 1;
+        }
+
+        /**
+         * 与范围重叠的每一段，在值为1的维上按字填充
+         */
+        @Override
+        void readPlanes(int fromWord, int n, long[][] planes, int offset) {
+            int from = fromWord << 6;
+            int to = (fromWord + n) << 6;
+            int r = Math.max(runBefore(from), 0);
+            for (; r < this.n && starts[r] < to; r++) {
+                int start = Math.max(starts[r], from) - from;
+                int end = Math.min(ends[r] + 1, to) - from;
+                if (start >= end)
+                    continue;
+                for (int value = values[r]; value != 0; value &= value - 1) {
+                    int p = Integer.numberOfTrailingZeros(value);
+                    if (p < planes.length)
+                        orRange(planes[p], offset, start, end);
+                }
+            }
+        }
+
+        @Override
+        void planeCardinality(long[] counts) {
+            for (int r = 0; r < n; r++) {
+                int length = ends[r] - starts[r] + 1;
+                for (int value = values[r]; value != 0; value &= value - 1)
+                    counts[Integer.numberOfTrailingZeros(value)] += length;
+            }
+        }
+
+        @Override
+        long sizeInBits() {
+            return starts.length * 32L + values.length * 32L;
+        }
+
+        @Override
+        Container resize(int newBitSize) {
+            RunContainer container = new RunContainer(newBitSize, 0);
+            container.starts = starts;
+            container.ends = ends;
+            container.values = values;
+            container.n = n;
+            container.cardinality = cardinality;
+            return container;
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package org.lepdou.common;
+
+/**
+ * 线程安全的MultiBitSet，按{@link MultiBitSet.Layout#PACKED}布局存储。
+ * <p/>
+ * 每次修改一个值都是对一个long的CAS（与AtomicLongArray相同），
+ * 多个线程可以不加锁地同时读写，读到的值不会是新旧bit混合的结果，
+ * 写不同long的线程之间没有竞争。
+ * 范围写入、clear(int...)、and/or/xor/andNot等批量操作对每个值是原子的，对整个范围不是。
+ * 扫描（nextSetBit等）和cardinality()读到的是执行过程中的值，不是某一时刻的快照。
+ * 不支持{@link #setGrowable(boolean)}自动扩大bitSize。
+ */
+public class ConcurrentMultiBitSet extends MultiBitSet {
+
+    private static final long serialVersionUID = 1L;
+
+    private final ConcurrentStorage concurrentStorage;
+
+    /**
+     * 创建指定维度的线程安全MultiBitSet
+     *
+     * @param bitSize 不能大于32
+     */
+    public ConcurrentMultiBitSet(int bitSize) {
+        this(bitSize, createStorage(bitSize));
+    }
+
+    private ConcurrentMultiBitSet(int bitSize, ConcurrentStorage concurrentStorage) {
+        super(bitSize, concurrentStorage);
+        this.concurrentStorage = concurrentStorage;
+    }
+
+    private static ConcurrentStorage createStorage(int bitSize) {
+        if (bitSize <= 0 || bitSize > 32)
+            throw new IllegalArgumentException("bitSize must be in [1,32]:[bitSize=" + bitSize);
+        return new ConcurrentStorage(bitSize);
+    }
+
+    /**
+     * 第index位的值等于expect时原子地设置为update
+     *
+     * @param index
+     * @param expect 期望的当前值
+     * @param update 新的值
+     * @return 当前值不等于expect时返回false，不做修改
+     * @throws IllegalArgumentException update的值大于 bitsize能够表示的最大的值
+     */
+    public boolean compareAndSet(int index, int expect, int update) {
+        checkIndex(index);
+        checkValue(update);
+        return concurrentStorage.compareAndSet(index, expect, update);
+    }
+}
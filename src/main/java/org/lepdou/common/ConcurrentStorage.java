@@ -0,0 +1,223 @@
+package org.lepdou.common;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * 线程安全的按字存储。
+ * ============================================================
+ * long按段存放在AtomicLongArray中，每段 2^16 个long，段在第一次写入非0值时才分配。
+ * 段的目录按int索引能够用到的最大long个数一次性创建，之后不再扩容，
+ * 分配段只需要在目录上做一次CAS，不会与其它线程的写入冲突。
+ * <p/>
+ * 一个值的所有bit都在同一个long里，修改一个值就是对这个long做一次CAS，
+ * 读到的值要么是修改前的，要么是修改后的，不会出现新旧bit混合的情况；
+ * 写不同long的线程之间没有任何竞争。
+ */
+class ConcurrentStorage extends AbstractPackedStorage {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int SEGMENT_SHIFT = 16;
+
+    static final int SEGMENT_MASK = (1 << SEGMENT_SHIFT) - 1;
+
+    private final AtomicReferenceArray<AtomicLongArray> segments;
+
+    /**
+     * 已分配的最大段的索引 + 1，先于段内的写入更新，扫描时不会漏掉已经写入的值
+     */
+    private final AtomicInteger segmentCount = new AtomicInteger();
+
+    ConcurrentStorage(int bitSize) {
+        super(bitSize);
+        long maxWords = (1L << 31) / valuesPerWord + 1;
+        this.segments = new AtomicReferenceArray<AtomicLongArray>((int) ((maxWords >>> SEGMENT_SHIFT) + 1));
+    }
+
+    /**
+     * 第segmentIndex段，不存在时按create决定是否分配
+     */
+    private AtomicLongArray segment(int segmentIndex, boolean create) {
+        AtomicLongArray segment = segments.get(segmentIndex);
+        if (segment == null) {
+            if (!create)
+                return null;
+            segments.compareAndSet(segmentIndex, null, new AtomicLongArray(1 << SEGMENT_SHIFT));
+            segment = segments.get(segmentIndex);
+        }
+        //段可能是其它线程刚分配的，它还没有更新segmentCount，
+        //返回前要保证segmentCount已经覆盖这一段，否则写入后连自己也读不到
+        int count;
+        while ((count = segmentCount.get()) <= segmentIndex)
+            if (segmentCount.compareAndSet(count, segmentIndex + 1))
+                break;
+        return segment;
+    }
+
+    @Override
+    int wordCount() {
+        return segmentCount.get() << SEGMENT_SHIFT;
+    }
+
+    @Override
+    long word(int wordIndex) {
+        AtomicLongArray segment = segments.get(wordIndex >>> SEGMENT_SHIFT);
+        return segment == null ? 0 : segment.get(wordIndex & SEGMENT_MASK);
+    }
+
+    @Override
+    void setWord(int wordIndex, long word) {
+        AtomicLongArray segment = segment(wordIndex >>> SEGMENT_SHIFT, word != 0);
+        if (segment != null)
+            segment.set(wordIndex & SEGMENT_MASK, word);
+    }
+
+    @Override
+    void set(int index, int value) {
+        int wordIndex = index / valuesPerWord;
+        int shift = index % valuesPerWord * bitSize;
+        long bits = (value & valueMask) << shift;
+        AtomicLongArray segment = segment(wordIndex >>> SEGMENT_SHIFT, bits != 0);
+        if (segment == null)
+            return;
+        int i = wordIndex & SEGMENT_MASK;
+        long word;
+        long updated;
+        do {
+            word = segment.get(i);
+            updated = (word & ~(valueMask << shift)) | bits;
+        } while (word != updated && !segment.compareAndSet(i, word, updated));
+    }
+
+    /**
+     * 每个long做一次CAS，只替换范围内的槽位
+     */
+    @Override
+    void set(int fromIndex, int toIndex, int value) {
+        if (fromIndex >= toIndex)
+            return;
+        long pattern = repeat(value);
+        int first = fromIndex / valuesPerWord;
+        int last = (toIndex - 1) / valuesPerWord;
+        for (int w = first; w <= last; w++) {
+            AtomicLongArray segment = segment(w >>> SEGMENT_SHIFT, pattern != 0);
+            if (segment == null) {
+                w |= SEGMENT_MASK;
+                continue;
+            }
+            long mask = rangeMask(w, first, last, fromIndex, toIndex);
+            int i = w & SEGMENT_MASK;
+            long word;
+            long updated;
+            do {
+                word = segment.get(i);
+                updated = (word & ~mask) | (pattern & mask);
+            } while (word != updated && !segment.compareAndSet(i, word, updated));
+        }
+    }
+
+    /**
+     * 逐个值CAS写入，不覆盖其它线程同时写入同一个long中的其它值
+     */
+    @Override
+    void setAll(int offset, int[] values) {
+        for (int i = 0; i < values.length; i++)
+            set(offset + i, values[i]);
+    }
+
+    /**
+     * 按long做CAS：读出long，与other对应槽位的值按维运算后CAS写回，失败时重读重算。
+     * 结果与原值相同的long不写，不会用读到的旧值覆盖其它线程同时写入的值
+     */
+    @Override
+    void combine(MultiBitStorage other, Operation op, int planes, int otherPlanes) {
+        int toIndex = Math.max(length(), other.length());
+        if (toIndex == 0)
+            return;
+        long lanes = repeat((int) ((1L << Math.min(planes, bitSize)) - 1));
+        int otherMask = (int) ((1L << Math.min(planes, otherPlanes)) - 1);
+        int lastBlock = (toIndex - 1) >>> 6;
+        int window = Math.min(PlaneScanner.WINDOW_WORDS, lastBlock + 1);
+        long[][] otherWords = new long[Math.min(planes, otherPlanes)][window];
+        long[] block = new long[64];
+        int[] values = new int[window << 6];
+        for (int b = 0; b <= lastBlock; b += window) {
+            int n = Math.min(window, lastBlock - b + 1);
+            other.readPlanes(b, n, otherWords);
+            boolean any = false;
+            for (int k = 0; k < n; k++) {
+                Arrays.fill(block, 0);
+                for (int p = 0; p < otherWords.length; p++) {
+                    block[p] = otherWords[p][k];
+                    any |= block[p] != 0;
+                }
+                transpose(block);
+                for (int i = 0; i < 64; i++)
+                    values[(k << 6) + i] = (int) block[i] & otherMask;
+            }
+            //other全为0时只有AND会修改自身
+            if (!any && op != Operation.AND)
+                continue;
+            int from = b << 6;
+            int to = (int) Math.min(from + ((long) n << 6), toIndex);
+            int first = from / valuesPerWord;
+            int last = (to - 1) / valuesPerWord;
+            for (int w = first; w <= last; w++) {
+                long mask = rangeMask(w, first, last, from, to) & lanes;
+                long base = (long) w * valuesPerWord - from;
+                long otherWord = 0;
+                for (int slot = 0; slot < valuesPerWord; slot++) {
+                    long index = base + slot;
+                    if (index >= 0 && index < to - from)
+                        otherWord |= (values[(int) index] & 0xFFFFFFFFL) << (slot * bitSize);
+                }
+                AtomicLongArray segment = segment(w >>> SEGMENT_SHIFT, (op.apply(0, otherWord) & mask) != 0);
+                if (segment == null)
+                    continue;
+                int i = w & SEGMENT_MASK;
+                long word;
+                long updated;
+                do {
+                    word = segment.get(i);
+                    updated = (word & ~mask) | (op.apply(word, otherWord) & mask);
+                } while (word != updated && !segment.compareAndSet(i, word, updated));
+            }
+        }
+    }
+
+    /**
+     * 当前值等于expect时原子地修改为update
+     *
+     * @return 是否修改成功
+     */
+    boolean compareAndSet(int index, int expect, int update) {
+        if ((expect & valueMask) != expect)
+            return false;
+        int wordIndex = index / valuesPerWord;
+        int shift = index % valuesPerWord * bitSize;
+        long expectBits = (expect & valueMask) << shift;
+        long bits = (update & valueMask) << shift;
+        AtomicLongArray segment = segment(wordIndex >>> SEGMENT_SHIFT, expectBits == 0 && bits != 0);
+        if (segment == null)
+            return expectBits == 0;
+        int i = wordIndex & SEGMENT_MASK;
+        long word;
+        do {
+            word = segment.get(i);
+            if ((word & (valueMask << shift)) != expectBits)
+                return false;
+        } while (!segment.compareAndSet(i, word, (word & ~(valueMask << shift)) | bits));
+        return true;
+    }
+
+    /**
+     * 修改bitSize需要重新排列所有long，无法与并发的写入同时进行
+     */
+    @Override
+    MultiBitStorage resize(int newBitSize) {
+        throw new UnsupportedOperationException("bitSize of concurrent MultiBitSet can not be changed");
+    }
+}
@@ -0,0 +1,163 @@
+package org.lepdou.common;
+
+import java.io.Serializable;
+
+/**
+ * 不可修改的MultiBitSet，由{@link MultiBitSet#freeze()}创建，适合启动后只读的场景。
+ * ------------------------------------------------------------
+ * 所有值按{@link MultiBitSet.Layout#PACKED}的方式紧凑地放在一个long数组里，
+ * 数组的长度正好容纳最后一个非0值。所有字段都是final的，
+ * 构造完成后可以不加任何同步地在任意多个线程之间共享。
+ * ------------------------------------------------------------
+ * get只有一次数组访问：
+ * 索引除以每个long存放的值的个数d，换成乘以预先算好的magic再右移，
+ * 对所有非负的int索引结果都与除法一致：
+ * magic = ceil(2^s / d)，s = 32 + floor(log2(d))，
+ * 误差 magic * d - 2^s < d，所以 index * 误差 < 2^31 * d <= 2^s，不会影响商。
+ */
+public final class FrozenMultiBitSet implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final int bitSize;
+
+    /**
+     * 每个值在long中占用的bit数，int最多需要31位
+     */
+    private final int width;
+
+    private final int valuesPerWord;
+
+    private final long magic;
+
+    private final int magicShift;
+
+    private final long valueMask;
+
+    private final long[] words;
+
+    private final int length;
+
+    private final int cardinality;
+
+    /**
+     * 供扫描使用，与words共享同一个数组
+     */
+    private final FrozenStorage storage;
+
+    FrozenMultiBitSet(int bitSize, MultiBitStorage source) {
+        this.bitSize = bitSize;
+        this.width = Math.min(bitSize, 31);
+        this.storage = new FrozenStorage(source, width);
+        this.valuesPerWord = storage.valuesPerWord;
+        this.magicShift = 63 - Long.numberOfLeadingZeros(valuesPerWord) + 32;
+        this.magic = ((1L << magicShift) + valuesPerWord - 1) / valuesPerWord;
+        this.valueMask = storage.valueMask;
+        this.words = storage.words;
+        this.length = storage.length();
+        long[] counts = new long[width];
+        storage.planeCardinality(counts);
+        long maxCardinality = 0;
+        for (long count : counts)
+            maxCardinality = Math.max(maxCardinality, count);
+        this.cardinality = (int) maxCardinality;
+    }
+
+    private static void checkIndex(int index) {
+        if (index < 0)
+            throw new IndexOutOfBoundsException("index:" + index);
+    }
+
+    /**
+     * 每个值占用的bit数
+     */
+    public int getBitSize() {
+        return bitSize;
+    }
+
+    /**
+     * Returns the value with the specified index.
+     *
+     * @param index the bit index
+     * @return the value with the specified index
+     * @throws IndexOutOfBoundsException if the specified index is negative
+     */
+    public int get(int index) {
+        checkIndex(index);
+        int wordIndex = (int) ((index * magic) >>> magicShift);
+        if (wordIndex >= words.length)
+            return 0;
+        return (int) ((words[wordIndex] >>> ((index - wordIndex * valuesPerWord) * width)) & valueMask);
+    }
+
+    /**
+     * 值不为0的最大索引 + 1
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * 各维中为1的bit个数的最大值，与{@link MultiBitSet#cardinality()}一致
+     */
+    public int cardinality() {
+        return cardinality;
+    }
+
+    /**
+     * 从fromIndex（包含）开始第一个值不为0的索引，不存在时返回-1
+     */
+    public int nextSetBit(int fromIndex) {
+        checkIndex(fromIndex);
+        return storage.nextSetBit(fromIndex);
+    }
+
+    /**
+     * 从fromIndex（包含）开始第一个值为0的索引
+     */
+    public int nextClearBit(int fromIndex) {
+        checkIndex(fromIndex);
+        return storage.nextClearBit(fromIndex);
+    }
+
+    /**
+     * 从fromIndex（包含）往前第一个值不为0的索引，不存在时返回-1
+     */
+    public int previousSetBit(int fromIndex) {
+        checkIndex(fromIndex);
+        return storage.previousSetBit(fromIndex);
+    }
+
+    /**
+     * 从fromIndex（包含）往前第一个值为0的索引，不存在时返回-1
+     */
+    public int previousClearBit(int fromIndex) {
+        checkIndex(fromIndex);
+        return storage.previousClearBit(fromIndex);
+    }
+
+    /**
+     * 实际占用的bit数
+     */
+    public int size() {
+        return storage.size();
+    }
+
+    @Override
+    public int hashCode() {
+        return storage.hashCode();
+    }
+
+    /**
+     * 比较两个FrozenMultiBitSet的所有值是否相等
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof FrozenMultiBitSet))
+            return false;
+        FrozenMultiBitSet set = (FrozenMultiBitSet) o;
+        return bitSize == set.bitSize && storage.contentEquals(set.storage);
+    }
+}
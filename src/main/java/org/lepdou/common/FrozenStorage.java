@@ -0,0 +1,41 @@
+package org.lepdou.common;
+
+/**
+ * 只读的按字存储，long数组的长度正好容纳所有非0值
+ */
+final class FrozenStorage extends AbstractPackedStorage {
+
+    private static final long serialVersionUID = 1L;
+
+    final long[] words;
+
+    /**
+     * 按source的值一次性填充，width为每个值占用的bit数
+     */
+    FrozenStorage(MultiBitStorage source, int width) {
+        super(width);
+        //length()在Integer.MAX_VALUE处有值时会溢出，按最后一个非0值的索引计算
+        long length = (long) source.previousSetBit(Integer.MAX_VALUE) + 1;
+        words = new long[(int) ((length + valuesPerWord - 1) / valuesPerWord)];
+        for (int i = source.nextSetBit(0); i >= 0; i = source.nextSetBit(i + 1)) {
+            words[i / valuesPerWord] |= (source.get(i) & valueMask) << (i % valuesPerWord * width);
+            if (i == Integer.MAX_VALUE)
+                break;
+        }
+    }
+
+    @Override
+    int wordCount() {
+        return words.length;
+    }
+
+    @Override
+    long word(int wordIndex) {
+        return words[wordIndex];
+    }
+
+    @Override
+    void setWord(int wordIndex, long word) {
+        throw new UnsupportedOperationException("FrozenMultiBitSet is read-only");
+    }
+}
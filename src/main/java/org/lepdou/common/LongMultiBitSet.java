@@ -0,0 +1,320 @@
+package org.lepdou.common;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * 索引为long的MultiBitSet，用于超过 2^31 个索引的场景（例如直接以64位的userId为索引）。
+ * ------------------------------------------------------------
+ * 索引空间按每 2^20 个索引切分成块，每块是一个独立的MultiBitSet：
+ * index = chunkIndex * 2^20 + offset
+ * 块在第一次写入非0值时才创建，没有创建的块的值都为0。
+ * 扩容时只复制块的引用，单个数组的大小不会超过一个块，块数组最多 2^14 个引用，
+ * 因此索引最大为 2^34 - 1（约 1.7 * 10^10），足够覆盖约 6 * 10^9 的userId。
+ * ------------------------------------------------------------
+ * 除索引类型外，语义与MultiBitSet一致；范围都是[fromIndex, toIndex)。
+ * 索引不能超过{@link #MAX_INDEX}，否则抛出IndexOutOfBoundsException。
+ */
+public class LongMultiBitSet implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int CHUNK_SHIFT = 20;
+
+    static final int CHUNK_SIZE = 1 << CHUNK_SHIFT;
+
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+    /**
+     * 块数组的最大长度，块数组本身最多 2^14 个引用
+     */
+    private static final int MAX_CHUNKS = 1 << 14;
+
+    /**
+     * 支持的最大索引：2^34 - 1，约 1.7 * 10^10
+     */
+    public static final long MAX_INDEX = ((long) MAX_CHUNKS << CHUNK_SHIFT) - 1;
+
+    private final int bitSize;
+
+    private final MultiBitSet.Layout layout;
+
+    private MultiBitSet[] chunks;
+
+    /**
+     * 创建指定维度的LongMultiBitSet，块使用{@link MultiBitSet.Layout#PLANE}布局
+     *
+     * @param bitSize
+     */
+    public LongMultiBitSet(int bitSize) {
+        this(bitSize, MultiBitSet.Layout.PLANE);
+    }
+
+    /**
+     * 创建指定维度和块存储布局的LongMultiBitSet
+     *
+     * @param bitSize
+     * @param layout
+     */
+    public LongMultiBitSet(int bitSize, MultiBitSet.Layout layout) {
+        MultiBitSet.checkArguments(bitSize, layout);
+        this.bitSize = bitSize;
+        this.layout = layout;
+        this.chunks = new MultiBitSet[0];
+    }
+
+    private static int chunkIndex(long index) {
+        return (int) (index >>> CHUNK_SHIFT);
+    }
+
+    private static int offset(long index) {
+        return (int) (index & CHUNK_MASK);
+    }
+
+    private static long base(int chunkIndex) {
+        return (long) chunkIndex << CHUNK_SHIFT;
+    }
+
+    private MultiBitSet chunk(int chunkIndex) {
+        return chunkIndex < chunks.length ? chunks[chunkIndex] : null;
+    }
+
+    private MultiBitSet chunkForWrite(int chunkIndex) {
+        if (chunkIndex >= chunks.length)
+            chunks = Arrays.copyOf(chunks, (int) Math.min(MAX_CHUNKS, Math.max(2L * chunks.length, chunkIndex + 1)));
+        MultiBitSet chunk = chunks[chunkIndex];
+        if (chunk == null)
+            chunk = chunks[chunkIndex] = new MultiBitSet(bitSize, layout);
+        return chunk;
+    }
+
+    /**
+     * 在分配块之前校验，非法的值不会留下空的块
+     */
+    private void checkValue(int value) {
+        if (value < 0 || value > Math.min((1L << bitSize) - 1, Integer.MAX_VALUE))
+            throw new IllegalArgumentException("value = " + value);
+    }
+
+    private void checkIndex(long index) {
+        if (index < 0 || index > MAX_INDEX)
+            throw new IndexOutOfBoundsException("index:" + index);
+    }
+
+    private void checkIndex(long fromIndex, long toIndex) {
+        if (toIndex < fromIndex || fromIndex < 0 || toIndex > MAX_INDEX + 1)
+            throw new IndexOutOfBoundsException("[" +
+                    "fromIndex,toIndex]=["
+                    + fromIndex + "," + toIndex + "]");
+    }
+
+    /**
+     * 每个值占用的bit数
+     */
+    public int getBitSize() {
+        return bitSize;
+    }
+
+    /**
+     * 设置第 index位的值。
+     *
+     * @param index
+     * @param value
+     * @throws IllegalArgumentException value的值大于 bitsize能够表示的最大的值
+     */
+    public void set(long index, int value) {
+        checkIndex(index);
+        checkValue(value);
+        MultiBitSet chunk = chunk(chunkIndex(index));
+        if (chunk == null) {
+            if (value == 0)
+                return;
+            chunk = chunkForWrite(chunkIndex(index));
+        }
+        chunk.set(offset(index), value);
+    }
+
+    /**
+     * Sets the bits from the specified {@code fromIndex} (inclusive) to the
+     * specified {@code toIndex} (exclusive) to the specified value.
+     *
+     * @param fromIndex index of the first bit to be set
+     * @param toIndex   index after the last bit to be set
+     * @param value     value to set the selected bits to
+     * @throws IndexOutOfBoundsException if {@code fromIndex} is negative,
+     *                                   or {@code toIndex} is negative, or {@code fromIndex} is
+     *                                   larger than {@code toIndex}
+     */
+    public void set(long fromIndex, long toIndex, int value) {
+        checkIndex(fromIndex, toIndex);
+        checkValue(value);
+        long index = fromIndex;
+        while (index < toIndex) {
+            int chunkIndex = chunkIndex(index);
+            long end = Math.min(toIndex, base(chunkIndex + 1));
+            MultiBitSet chunk = value == 0 ? chunk(chunkIndex) : chunkForWrite(chunkIndex);
+            if (chunk != null)
+                chunk.set(offset(index), (int) (end - base(chunkIndex)), value);
+            index = end;
+        }
+    }
+
+    /**
+     * Sets the bit specified by the index to {@code false}.
+     *
+     * @param index the index of the bit to be cleared
+     * @throws IndexOutOfBoundsException if the specified index is negative
+     */
+    public void clear(long index) {
+        set(index, 0);
+    }
+
+    public void clear(long fromIndex, long toIndex) {
+        set(fromIndex, toIndex, 0);
+    }
+
+    /**
+     * Returns the value with the specified index.
+     *
+     * @param index the bit index
+     * @return the value with the specified index
+     * @throws IndexOutOfBoundsException if the specified index is negative
+     */
+    public int get(long index) {
+        checkIndex(index);
+        MultiBitSet chunk = chunk(chunkIndex(index));
+        return chunk == null ? 0 : chunk.get(offset(index));
+    }
+
+    /**
+     * Returns a new {@code LongMultiBitSet} composed of values from this set
+     * from {@code fromIndex} (inclusive) to {@code toIndex} (exclusive).
+     *
+     * @param fromIndex index of the first value to include
+     * @param toIndex   index after the last value to include
+     * @return a new {@code LongMultiBitSet} from a range of this set
+     * @throws IndexOutOfBoundsException if {@code fromIndex} is negative,
+     *                                   or {@code toIndex} is negative, or {@code fromIndex} is
+     *                                   larger than {@code toIndex}
+     */
+    public LongMultiBitSet get(long fromIndex, long toIndex) {
+        checkIndex(fromIndex, toIndex);
+        LongMultiBitSet subBitSet = new LongMultiBitSet(bitSize, layout);
+        for (long i = nextSetBit(fromIndex); i >= 0 && i < toIndex; i = nextSetBit(i + 1))
+            subBitSet.set(i - fromIndex, get(i));
+        return subBitSet;
+    }
+
+    /**
+     * 各维中为1的bit个数的最大值，与{@link MultiBitSet#cardinality()}一致
+     */
+    public long cardinality() {
+        long[] counts = new long[bitSize];
+        for (MultiBitSet chunk : chunks)
+            if (chunk != null)
+                chunk.planeCardinality(counts);
+        long maxCardinality = 0;
+        for (long count : counts)
+            maxCardinality = Math.max(maxCardinality, count);
+        return maxCardinality;
+    }
+
+    /**
+     * 值不为0的最大索引 + 1
+     */
+    public long length() {
+        for (int c = chunks.length - 1; c >= 0; c--) {
+            MultiBitSet chunk = chunks[c];
+            if (chunk != null) {
+                int length = chunk.length();
+                if (length > 0)
+                    return base(c) + length;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 从fromIndex（包含）开始第一个值不为0的索引，不存在时返回-1
+     */
+    public long nextSetBit(long fromIndex) {
+        checkIndex(fromIndex);
+        int offset = offset(fromIndex);
+        for (int c = chunkIndex(fromIndex); c < chunks.length; c++, offset = 0) {
+            MultiBitSet chunk = chunks[c];
+            if (chunk != null) {
+                int next = chunk.nextSetBit(offset);
+                if (next >= 0)
+                    return base(c) + next;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 从fromIndex（包含）开始第一个值为0的索引
+     */
+    public long nextClearBit(long fromIndex) {
+        checkIndex(fromIndex);
+        int offset = offset(fromIndex);
+        for (int c = chunkIndex(fromIndex); c < chunks.length; c++, offset = 0) {
+            MultiBitSet chunk = chunks[c];
+            if (chunk == null)
+                return base(c) + offset;
+            int next = chunk.nextClearBit(offset);
+            if (next < CHUNK_SIZE)
+                return base(c) + next;
+        }
+        return Math.max(fromIndex, base(chunks.length));
+    }
+
+    /**
+     * 从fromIndex（包含）往前第一个值不为0的索引，不存在时返回-1
+     */
+    public long previousSetBit(long fromIndex) {
+        checkIndex(fromIndex);
+        int c = chunkIndex(fromIndex);
+        int offset = offset(fromIndex);
+        if (c >= chunks.length) {
+            c = chunks.length - 1;
+            offset = CHUNK_MASK;
+        }
+        for (; c >= 0; c--, offset = CHUNK_MASK) {
+            MultiBitSet chunk = chunks[c];
+            if (chunk != null) {
+                int previous = chunk.previousSetBit(offset);
+                if (previous >= 0)
+                    return base(c) + previous;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 从fromIndex（包含）往前第一个值为0的索引，不存在时返回-1
+     */
+    public long previousClearBit(long fromIndex) {
+        checkIndex(fromIndex);
+        int offset = offset(fromIndex);
+        for (int c = chunkIndex(fromIndex); c >= 0; c--, offset = CHUNK_MASK) {
+            MultiBitSet chunk = chunk(c);
+            if (chunk == null)
+                return base(c) + offset;
+            int previous = chunk.previousClearBit(offset);
+            if (previous >= 0)
+                return base(c) + previous;
+        }
+        return -1;
+    }
+
+    /**
+     * 实际占用的bit数
+     */
+    public long size() {
+        long size = 0;
+        for (MultiBitSet chunk : chunks)
+            if (chunk != null)
+                size += chunk.size();
+        return size;
+    }
+}
@@ -0,0 +1,79 @@
+package org.lepdou.common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 通过内存映射打开{@link MultiBitSet#writeMappedFile(String)}写出的文件。
+ * 打开时只建立映射，不读取也不解析数据，几十MB到几个G的文件都可以在毫秒级完成“初始化”，
+ * 查询时由操作系统按需加载页面，多个JVM打开同一个文件时共享page cache。
+ * <p/>
+ * 只读模式下任何写操作都会抛出UnsupportedOperationException。
+ * 可写模式下set、clear直接修改文件，不需要每批修改后都通过writeObjectToFileSystem重写整个文件，
+ * 修改只有在{@link #force()}之后才保证落盘。
+ * 使用完需要调用{@link #close()}解除映射，关闭后的任何访问都会抛出IllegalStateException。
+ */
+public class MappedMultiBitSet extends MultiBitSet implements Closeable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final MappedStorage mappedStorage;
+
+    private MappedMultiBitSet(MappedStorage mappedStorage) {
+        super(mappedStorage.bitSize, mappedStorage);
+        this.mappedStorage = mappedStorage;
+    }
+
+    /**
+     * 以只读方式映射文件
+     *
+     * @param path writeMappedFile写出的文件
+     * @throws IOException 文件不存在或者不是MultiBitSet文件
+     */
+    public static MappedMultiBitSet open(String path) throws IOException {
+        return open(path, false);
+    }
+
+    /**
+     * 映射文件
+     *
+     * @param path     writeMappedFile写出的文件
+     * @param writable 是否以可写方式映射
+     * @throws IOException 文件不存在或者不是MultiBitSet文件
+     */
+    public static MappedMultiBitSet open(String path, boolean writable) throws IOException {
+        if (path == null)
+            throw new NullPointerException();
+        return new MappedMultiBitSet(MappedStorage.open(new File(path), writable));
+    }
+
+    /**
+     * 创建一个空的MultiBitSet文件并以可写方式映射，文件已存在时会被覆盖
+     *
+     * @param path
+     * @param bitSize 不能大于32
+     * @throws IOException
+     */
+    public static MappedMultiBitSet create(String path, int bitSize) throws IOException {
+        if (path == null)
+            throw new NullPointerException();
+        if (bitSize <= 0 || bitSize > 32)
+            throw new IllegalArgumentException("bitSize must be in [1,32]:[bitSize=" + bitSize);
+        return new MappedMultiBitSet(MappedStorage.create(new File(path), bitSize));
+    }
+
+    /**
+     * 把修改写回磁盘，返回后即使进程崩溃修改也不会丢失。只读模式下没有影响
+     */
+    public void force() {
+        mappedStorage.force();
+    }
+
+    /**
+     * 解除映射，重复调用没有影响
+     */
+    public void close() {
+        mappedStorage.close();
+    }
+}
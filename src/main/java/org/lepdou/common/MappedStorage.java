@@ -0,0 +1,229 @@
+package org.lepdou.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * 通过FileChannel.map映射文件的按字存储，读取直接访问page cache，同一台机器上的多个JVM共享物理内存。
+ * ============================================================
+ * 文件格式（little-endian）：
+ * | magic(4) | bitSize(4) | wordCount(8) | word[0] | word[1] | .... |
+ * word的布局与{@link MultiBitSet.Layout#PACKED}相同。
+ * 单个MappedByteBuffer不能超过2G，所以文件按每段 2^24 个long（128MB）分段映射。
+ * <p/>
+ * 可写模式下写操作直接修改映射的页面，写入超出文件范围时扩大文件并只重新映射最后一段，
+ * 调用{@link #force()}之后修改才保证落盘。
+ */
+class MappedStorage extends BufferStorage {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int MAGIC = 0x3153424D;
+
+    static final int HEADER_SIZE = 16;
+
+    static final int SEGMENT_SHIFT = 24;
+
+    /**
+     * 文件每次至少扩大 2^13 个long（64KB）
+     */
+    private static final int GROW_WORDS = 1 << 13;
+
+    private int wordCount;
+
+    /**
+     * 可写模式下保持打开，用于扩大文件；只读模式下为null
+     */
+    private RandomAccessFile file;
+
+    private MappedByteBuffer header;
+
+    private MappedStorage(int bitSize, int wordCount) {
+        super(bitSize, SEGMENT_SHIFT);
+        this.wordCount = wordCount;
+    }
+
+    /**
+     * 创建一个空文件并以可写方式映射，文件已存在时会被覆盖
+     */
+    static MappedStorage create(File file, int bitSize) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(bitSize).putLong(0).flip();
+            FileChannel channel = randomAccessFile.getChannel();
+            while (header.hasRemaining())
+                channel.write(header);
+        } finally {
+            randomAccessFile.close();
+        }
+        return open(file, true);
+    }
+
+    /**
+     * 映射文件
+     *
+     * @param writable 是否以可写方式映射
+     */
+    static MappedStorage open(File file, boolean writable) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, writable ? "rw" : "r");
+        boolean keepOpen = false;
+        try {
+            FileChannel channel = randomAccessFile.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining())
+                if (channel.read(header, header.position()) < 0)
+                    throw new IOException("not a MultiBitSet file:" + file);
+            int bitSize = header.getInt(4);
+            long wordCount = header.getLong(8);
+            if (header.getInt(0) != MAGIC || bitSize <= 0 || bitSize > 32 || wordCount < 0
+                    || wordCount > Integer.MAX_VALUE || channel.size() < HEADER_SIZE + wordCount * 8)
+                throw new IOException("not a MultiBitSet file:" + file);
+            MappedStorage storage = new MappedStorage(bitSize, (int) wordCount);
+            storage.segments = new ByteBuffer[0];
+            if (writable) {
+                storage.file = randomAccessFile;
+                storage.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+                storage.header.order(ByteOrder.LITTLE_ENDIAN);
+            }
+            storage.mapSegments(channel, 0);
+            keepOpen = writable;
+            return storage;
+        } finally {
+            //只读模式下映射建立后关闭文件不影响映射
+            if (!keepOpen)
+                randomAccessFile.close();
+        }
+    }
+
+    /**
+     * 从第firstSegment段开始按当前的wordCount重新映射
+     */
+    private void mapSegments(FileChannel channel, int firstSegment) throws IOException {
+        FileChannel.MapMode mode = file != null ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+        int segmentCount = (int) (((long) wordCount + (1 << SEGMENT_SHIFT) - 1) >>> SEGMENT_SHIFT);
+        ByteBuffer[] oldSegments = segments;
+        ByteBuffer[] newSegments = new ByteBuffer[segmentCount];
+        System.arraycopy(oldSegments, 0, newSegments, 0, Math.min(firstSegment, oldSegments.length));
+        for (int s = firstSegment; s < segmentCount; s++) {
+            long firstWord = (long) s << SEGMENT_SHIFT;
+            long words = Math.min(1 << SEGMENT_SHIFT, wordCount - firstWord);
+            newSegments[s] = channel.map(mode, HEADER_SIZE + firstWord * 8, words * 8).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        segments = newSegments;
+        for (int s = firstSegment; s < oldSegments.length; s++)
+            DirectBuffers.free(oldSegments[s]);
+    }
+
+    /**
+     * 把任意布局的存储按映射文件格式写出
+     */
+    static void write(MultiBitStorage storage, int bitSize, File file) throws IOException {
+        int valuesPerWord = 64 / bitSize;
+        long valueMask = (1L << bitSize) - 1;
+        AbstractPackedStorage packed = null;
+        if (storage instanceof AbstractPackedStorage && ((AbstractPackedStorage) storage).bitSize == bitSize)
+            packed = (AbstractPackedStorage) storage;
+        int length = storage.length();
+        int wordCount = (int) (((long) length + valuesPerWord - 1) / valuesPerWord);
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(0);
+            FileChannel channel = randomAccessFile.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(MAGIC).putInt(bitSize).putLong(wordCount);
+            for (int w = 0; w < wordCount; w++) {
+                long word;
+                if (packed != null) {
+                    word = packed.word(w);
+                } else {
+                    word = 0;
+                    int index = w * valuesPerWord;
+                    for (int slot = 0; slot < valuesPerWord && index < length; slot++, index++)
+                        word |= (storage.get(index) & valueMask) << (slot * bitSize);
+                }
+                if (!buffer.hasRemaining())
+                    flush(channel, buffer);
+                buffer.putLong(word);
+            }
+            flush(channel, buffer);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    private static void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    @Override
+    int wordCount() {
+        return wordCount;
+    }
+
+    @Override
+    void setWord(int wordIndex, long word) {
+        segments();
+        if (file == null)
+            throw new UnsupportedOperationException("MultiBitSet is read-only");
+        if (wordIndex >= wordCount) {
+            if (word == 0)
+                return;
+            grow(wordIndex + 1);
+        }
+        segments[wordIndex >>> SEGMENT_SHIFT].putLong((wordIndex & segmentMask) << 3, word);
+    }
+
+    /**
+     * 扩大文件，新增部分的值都为0
+     */
+    private void grow(int wordsRequired) {
+        long newWordCount = Math.max(wordsRequired, (long) wordCount + (wordCount >>> 2));
+        newWordCount = Math.min((newWordCount + GROW_WORDS - 1) / GROW_WORDS * GROW_WORDS, Integer.MAX_VALUE);
+        int lastSegment = wordCount >>> SEGMENT_SHIFT;
+        try {
+            file.setLength(HEADER_SIZE + newWordCount * 8);
+            wordCount = (int) newWordCount;
+            header.putLong(8, wordCount);
+            mapSegments(file.getChannel(), lastSegment);
+        } catch (IOException e) {
+            throw new IllegalStateException("can not grow mapped file", e);
+        }
+    }
+
+    /**
+     * 把修改过的页面写回磁盘
+     */
+    void force() {
+        ByteBuffer[] segments = segments();
+        if (file == null)
+            return;
+        for (ByteBuffer segment : segments)
+            ((MappedByteBuffer) segment).force();
+        header.force();
+    }
+
+    @Override
+    void close() {
+        super.close();
+        if (file != null) {
+            DirectBuffers.free(header);
+            header = null;
+            try {
+                file.close();
+            } catch (IOException e) {
+                //ig
+            }
+            file = null;
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package org.lepdou.common;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.function.IntConsumer;
 
 /**
  *
@@ -44,28 +46,74 @@ import java.util.BitSet;
  *      鉴于此 提供writeObjectToFileSystem写入文件系统，
  *      并且通过initFromInputStream直接初始化对象。
  *      方案三由于文件小速度快，而方案二(750M）需要消耗大量时间。
+ * ------------------------------------------------------------
+ * 存储布局：
+ *   1.{@link Layout#PLANE}  每一维一个BitSet（默认）
+ *   2.{@link Layout#PACKED} 一个值的所有bit放在同一个long中，get/set只访问一个long
+ *   3.{@link Layout#COMPRESSED} 按块压缩，只为非0值占用内存，适合大部分值为0的场景
+ *   4.{@link Layout#PAGED}  按固定大小的页分配，页在第一次写入时分配，扩容时不复制已有数据
+ * 堆外存储见{@link OffHeapMultiBitSet}，内存映射文件见{@link MappedMultiBitSet}，
+ * 只读场景见{@link #freeze()}
+ * <p/>
+ * 序列化格式：按维存储之前通过writeObjectToFileSystem写入的文件仍然可以用initFromInputStream读取，
+ * 读入后为{@link Layout#PLANE}布局；新写入的文件不能被旧版本读取。
  *
  *@Author lepdou 15.3.26
  */
 public class MultiBitSet implements Serializable {
-    public long serialVersionUID = 683651966784235010l;
+    /**
+     * 与按维存储之前写入的文件保持一致（当时没有声明，由JVM按类结构计算得到）
+     */
+    private static final long serialVersionUID = -3158118212018579052L;
+
+    /**
+     * bitSets是按维存储之前的字段，只在读取旧文件时使用，写入时总是null
+     */
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("bitSize", int.class),
+            new ObjectStreamField("maxValuePerBit", int.class),
+            new ObjectStreamField("storage", MultiBitStorage.class),
+            new ObjectStreamField("growable", boolean.class),
+            new ObjectStreamField("bitSets", BitSet[].class)
+    };
+
     /**
      * bitSize个bit代表一个“bit”
      */
     private int bitSize;
 
     private int maxValuePerBit;
+
+    private MultiBitStorage storage;
+
+    /**
+     * 写入超出bitSize能够表示的值时是否自动增加bitSize
+     */
+    private boolean growable;
+
     /**
-     * 用一个BitSet表示一维
-     * ============================================================
-     * 例：
-     * ***|***|***|***|***|***|***|***|***|
-     * 0   1   2   3  ....
-     * =》
-     * MultiBitSet[2] = bitSets[2][2] + bitSets[1][2] + bitSets[0][2]
-     * *** = bitSets[2,1,0] 在一个Bit里低位用低数组的下标表示
+     * 存储布局，两种布局对外的行为完全一致
      */
-    private BitSet[] bitSets;
+    public enum Layout {
+        /**
+         * 用一个BitSet表示一维，get/set需要访问bitSize个BitSet
+         */
+        PLANE,
+        /**
+         * 一个值的bitSize个bit存放在同一个long的相邻位置，get/set只访问一个long
+         */
+        PACKED,
+        /**
+         * 每 2^16 个索引一块，块内根据数据选择有序数组、按字存储或者连续段的容器，
+         * 全部为0的块不占用内存，内存与非0值的个数成正比
+         */
+        COMPRESSED,
+        /**
+         * 每 2^16 个索引一页，页内每一维 1024 个long，
+         * 页在第一次写入非0值时才分配，扩容时只复制页的引用
+         */
+        PAGED
+    }
 
     /**
      * 创建指定维度的MultiBitSet
@@ -73,25 +121,70 @@ public class MultiBitSet implements Serializable {
      * @param bitSize
      */
     public MultiBitSet(int bitSize) {
-        init(bitSize);
+        init(bitSize, Layout.PLANE);
+    }
+
+    /**
+     * 创建指定维度和存储布局的MultiBitSet
+     *
+     * @param bitSize
+     * @param layout
+     */
+    public MultiBitSet(int bitSize, Layout layout) {
+        init(bitSize, layout);
     }
 
     /**
      * 创建一个MultiBitSet 默认 bitsize = 1
      */
     public MultiBitSet() {
-        init(1);
+        init(1, Layout.PLANE);
+    }
+
+    MultiBitSet(int bitSize, MultiBitStorage storage) {
+        calMaxValuePerBit(bitSize);
+        this.bitSize = bitSize;
+        this.storage = storage;
+    }
+
+    private void init(int bitSize, Layout layout) {
+        checkArguments(bitSize, layout);
+        calMaxValuePerBit(bitSize);
+        this.bitSize = bitSize;
+        storage = createStorage(bitSize, layout);
     }
 
-    private void init(int bitSize) {
+    /**
+     * 校验构造参数，不创建存储
+     */
+    static void checkArguments(int bitSize, Layout layout) {
         if (bitSize <= 0) {
             throw new IllegalArgumentException("bitSize can not be negative:[bitSize=" + bitSize);
         }
-        calMaxValuePerBit(bitSize);
-        this.bitSize = bitSize;
-        bitSets = new BitSet[bitSize];
-        for (int i = 0; i < bitSize; i++)
-            bitSets[i] = initBitSet(0);
+        if (layout == null)
+            throw new NullPointerException();
+        if (layout == Layout.PACKED && bitSize > 32)
+            throw new IllegalArgumentException("bitSize of packed layout can not be greater than 32:[bitSize=" + bitSize);
+    }
+
+    private static MultiBitStorage createStorage(int bitSize, Layout layout) {
+        switch (layout) {
+            case PACKED:
+                return new PackedStorage(bitSize);
+            case COMPRESSED:
+                return new CompressedStorage(bitSize);
+            case PAGED:
+                return new PagedStorage(bitSize);
+            default:
+                return new PlaneStorage(bitSize);
+        }
+    }
+
+    /**
+     * 当前的存储布局
+     */
+    public Layout getLayout() {
+        return storage.layout();
     }
 
     /**
@@ -100,20 +193,7 @@ public class MultiBitSet implements Serializable {
      * @param bitSize
      */
     private void calMaxValuePerBit(int bitSize) {
-        int value = 1;
-        for (int i = 0; i < bitSize; i++)
-            value <<= 1;
-        maxValuePerBit = value;
-    }
-
-
-    private BitSet initBitSet(int nbits) {
-        BitSet bitSet = null;
-        if (nbits <= 0)
-            bitSet = new BitSet();
-        else
-            bitSet = new BitSet(nbits);
-        return bitSet;
+        maxValuePerBit = (int) Math.min((1L << bitSize) - 1, Integer.MAX_VALUE);
     }
 
     /**
@@ -126,15 +206,10 @@ public class MultiBitSet implements Serializable {
     public void set(int index, int value) {
         checkIndex(index);
         checkValue(value);
-        Boolean[] bits = calBooleanPerBit(value);
-        for (int i = 0; i < bitSize; i++)
-            if (bits[i])
-                bitSets[i].set(index);
-            else
-                bitSets[i].clear(index);
+        storage.set(index, value);
     }
 
-    private void checkIndex(int index) {
+    void checkIndex(int index) {
         if (index < 0)
             throw new IndexOutOfBoundsException("index:" + index);
     }
@@ -160,10 +235,8 @@ public class MultiBitSet implements Serializable {
      */
     public void set(int fromIndex, int toIndex, int value) {
         checkIndex(fromIndex, toIndex);
-        if (value < 0)
-            throw new IllegalArgumentException("value cant be negative value:" + value);
-        for (int i = fromIndex; i <= toIndex; i++)
-            set(i, value);
+        checkValue(value);
+        storage.set(fromIndex, toIndex, value);
     }
 
     public void set(int value, int... indexs) {
@@ -183,6 +256,16 @@ public class MultiBitSet implements Serializable {
         set(index, 0);
     }
 
+    /**
+     * Sets the bits from the specified {@code fromIndex} (inclusive) to the
+     * specified {@code toIndex} (exclusive) to {@code 0}.
+     *
+     * @param fromIndex index of the first bit to be cleared
+     * @param toIndex   index after the last bit to be cleared
+     * @throws IndexOutOfBoundsException if {@code fromIndex} is negative,
+     *                                   or {@code toIndex} is negative, or {@code fromIndex} is
+     *                                   larger than {@code toIndex}
+     */
     public void clear(int fromIndex, int toIndex) {
         set(fromIndex, toIndex, 0);
     }
@@ -191,22 +274,6 @@ public class MultiBitSet implements Serializable {
         set(0, indexs);
     }
 
-    /**
-     * 解析value，得到每一位的 0|1
-     *
-     * @param value
-     * @return
-     */
-    private Boolean[] calBooleanPerBit(int value) {
-        Boolean[] sets = new Boolean[bitSize];
-        int k = 1;
-        for (int i = bitSize - 1; i >= 0; i--) {
-            sets[i] = (value & k) >= 1;
-            k <<= 1;
-        }
-        return sets;
-    }
-
     /**
      * Returns the value of the bit with the specified index. The value
      * is {@code true} if the bit with the index {@code bitIndex}
@@ -219,8 +286,137 @@ public class MultiBitSet implements Serializable {
      */
     public int get(int index) {
         checkIndex(index);
-        Boolean[] bits = generateBits(index);
-        return calValue(bits);
+        return storage.get(index);
+    }
+
+    /**
+     * 从值数组创建MultiBitSet，第i个索引的值为values[i]，使用{@link Layout#PLANE}布局
+     *
+     * @param values
+     * @param bitSize
+     * @throws IllegalArgumentException values中有负数或者大于 bitsize能够表示的最大的值
+     */
+    public static MultiBitSet fromValues(int[] values, int bitSize) {
+        return fromValues(values, bitSize, Layout.PLANE);
+    }
+
+    /**
+     * 从值数组创建指定存储布局的MultiBitSet，第i个索引的值为values[i]
+     *
+     * @param values
+     * @param bitSize
+     * @param layout
+     * @throws IllegalArgumentException values中有负数或者大于 bitsize能够表示的最大的值
+     */
+    public static MultiBitSet fromValues(int[] values, int bitSize, Layout layout) {
+        MultiBitSet set = new MultiBitSet(bitSize, layout);
+        set.setAll(0, values);
+        return set;
+    }
+
+    /**
+     * 把[offset, offset + values.length)依次设置为values中的值。
+     * 按维存储时每64个值做一次bit矩阵转置，一次写入每一维的一个long；
+     * 按字存储时每个long只拼接、写入一次
+     *
+     * @param offset values[0]对应的索引
+     * @param values
+     * @throws IllegalArgumentException values中有负数或者大于 bitsize能够表示的最大的值，此时没有写入任何值
+     */
+    public void setAll(int offset, int[] values) {
+        checkIndex(offset);
+        if ((long) offset + values.length > Integer.MAX_VALUE)
+            throw new IndexOutOfBoundsException("[offset,length]=[" + offset + "," + values.length + "]");
+        int bits = 0;
+        for (int value : values) {
+            if (value < 0)
+                checkValue(value);
+            bits |= value;
+        }
+        checkValue(bits);
+        storage.setAll(offset, values);
+    }
+
+    /**
+     * 批量读取，out[i] = get(indexes[i])。
+     * 先按索引所在的 2^16 个索引的区间分桶，再按桶的顺序读取，
+     * 大批量随机的索引也能大致按顺序访问内存。
+     *
+     * @param indexes 要读取的索引
+     * @param out     长度不能小于indexes.length
+     * @throws IndexOutOfBoundsException 有负数的索引，此时out没有被修改
+     */
+    public void getAll(int[] indexes, int[] out) {
+        checkBatch(indexes, out.length, 32);
+        int[] order = accessOrder(indexes);
+        for (int k = 0; k < indexes.length; k++) {
+            int i = order == null ? k : order[k];
+            out[i] = storage.get(indexes[i]);
+        }
+    }
+
+    /**
+     * 批量读取到short数组，bitSize不能大于16，bitSize为16时按无符号读取：out[i] & 0xFFFF
+     *
+     * @see #getAll(int[], int[])
+     */
+    public void getAll(int[] indexes, short[] out) {
+        checkBatch(indexes, out.length, 16);
+        int[] order = accessOrder(indexes);
+        for (int k = 0; k < indexes.length; k++) {
+            int i = order == null ? k : order[k];
+            out[i] = (short) storage.get(indexes[i]);
+        }
+    }
+
+    /**
+     * 批量读取到byte数组，bitSize不能大于8，bitSize为8时按无符号读取：out[i] & 0xFF
+     *
+     * @see #getAll(int[], int[])
+     */
+    public void getAll(int[] indexes, byte[] out) {
+        checkBatch(indexes, out.length, 8);
+        int[] order = accessOrder(indexes);
+        for (int k = 0; k < indexes.length; k++) {
+            int i = order == null ? k : order[k];
+            out[i] = (byte) storage.get(indexes[i]);
+        }
+    }
+
+    private void checkBatch(int[] indexes, int outLength, int maxBitSize) {
+        if (bitSize > maxBitSize)
+            throw new IllegalArgumentException("bitSize can not be greater than " + maxBitSize + ":[bitSize=" + bitSize);
+        if (outLength < indexes.length)
+            throw new IllegalArgumentException("out.length < indexes.length:[" + outLength + "," + indexes.length + "]");
+        for (int index : indexes)
+            checkIndex(index);
+    }
+
+    /**
+     * 按索引所在的区间计数排序得到的读取顺序，索引已经有序或者个数很少时返回null
+     */
+    private static int[] accessOrder(int[] indexes) {
+        int n = indexes.length;
+        if (n < 1024)
+            return null;
+        int maxIndex = 0;
+        boolean sorted = true;
+        for (int k = 0; k < n; k++) {
+            if (k > 0 && indexes[k] < indexes[k - 1])
+                sorted = false;
+            maxIndex = Math.max(maxIndex, indexes[k]);
+        }
+        if (sorted)
+            return null;
+        int[] starts = new int[(maxIndex >>> 16) + 2];
+        for (int index : indexes)
+            starts[(index >>> 16) + 1]++;
+        for (int b = 1; b < starts.length; b++)
+            starts[b] += starts[b - 1];
+        int[] order = new int[n];
+        for (int k = 0; k < n; k++)
+            order[starts[indexes[k] >>> 16]++] = k;
+        return order;
     }
 
     /**
@@ -237,50 +433,699 @@ public class MultiBitSet implements Serializable {
      */
     public MultiBitSet get(int fromIndex, int toIndex) {
         checkIndex(fromIndex, toIndex);
-        MultiBitSet subBitSet = new MultiBitSet(this.bitSize);
-        BitSet[] copyedBitSet = new BitSet[this.bitSize];
-        for (int i = 0; i < bitSize; i++)
-            copyedBitSet[i] = bitSets[i].get(fromIndex, toIndex);
-        subBitSet.bitSets = copyedBitSet;
-        return subBitSet;
+        return new MultiBitSet(bitSize, storage.get(fromIndex, toIndex));
     }
 
+    void checkValue(int value) {
+        if (value < 0 || (value > maxValuePerBit && !growable))
+            throw new IllegalArgumentException("value = " + value);
+        if (value > maxValuePerBit)
+            resize(32 - Integer.numberOfLeadingZeros(value));
+    }
 
     /**
-     * 根据索引计算中间变量 Bits
-     * 1101 = [true,true,false,true]
+     * 修改bitSize，由存储层就地增删维或者重新排列long，不经过中间的int[]
+     */
+    private void resize(int newBitSize) {
+        storage = storage.resize(newBitSize);
+        bitSize = newBitSize;
+        calMaxValuePerBit(newBitSize);
+    }
+
+    /**
+     * 设置为可增长模式后，写入超出当前bitSize能够表示的值时自动把bitSize增加到刚好能够表示该值，
+     * 而不是抛出IllegalArgumentException。
+     * 堆外和内存映射的MultiBitSet不支持增长，增长时抛出UnsupportedOperationException。
      *
-     * @param index
-     * @return
+     * @param growable
      */
-    private Boolean[] generateBits(int index) {
-        Boolean[] bits = new Boolean[bitSize];
-        for (int i = bitSize - 1; i >= 0; i--)
-            bits[i] = bitSets[i].get(index);
-        return bits;
+    public void setGrowable(boolean growable) {
+        this.growable = growable;
+    }
+
+    public boolean isGrowable() {
+        return growable;
     }
 
     /**
-     * [true,true,false,true] = 1101 = 13
+     * O(1)地生成当前所有值的只读快照，之后对本对象的修改不会影响快照。
+     * 快照与本对象共享所有页，本对象在快照之后第一次写入某一页时才复制这一页。
+     * 需要与写入在同一个线程（或者同一把锁内）调用
      *
-     * @param bits
-     * @return
+     * @return 只读的MultiBitSet，写入时抛出UnsupportedOperationException
+     * @throws UnsupportedOperationException 存储布局不是{@link Layout#PAGED}
      */
-    private int calValue(Boolean[] bits) {
-        int k = 1;
-        int value = 0;
-        for (int i = bits.length - 1; i >= 0; i--) {
-            if (bits[i]) {
-                value += k;
-            }
-            k <<= 1;
-        }
-        return value;
+    public MultiBitSet snapshot() {
+        return new MultiBitSet(bitSize, storage.snapshot());
+    }
+
+    /**
+     * 生成当前所有值的只读副本，之后对本对象的修改不会影响副本
+     *
+     * @return 紧凑存储、可以在多个线程间无锁共享的FrozenMultiBitSet
+     */
+    public FrozenMultiBitSet freeze() {
+        return new FrozenMultiBitSet(bitSize, storage);
+    }
+
+    /**
+     * 把bitSize缩小到刚好能够表示当前最大的值（至少为1）
+     *
+     * @return 缩小后的bitSize
+     */
+    public int compact() {
+        long[] counts = new long[bitSize];
+        storage.planeCardinality(counts);
+        int newBitSize = bitSize;
+        while (newBitSize > 1 && counts[newBitSize - 1] == 0)
+            newBitSize--;
+        if (newBitSize < bitSize)
+            resize(newBitSize);
+        return bitSize;
+    }
+
+    /**
+     * [0, length())中每个值出现的次数，例如histogram()[2]为值等于2的索引的个数
+     *
+     * @return 长度为 2^bitSize 的数组
+     * @throws IllegalArgumentException bitSize大于16
+     */
+    public long[] histogram() {
+        return histogram(0, length());
+    }
+
+    /**
+     * [fromIndex, toIndex)中每个值出现的次数。
+     * 按维每次读出64个索引，对各维做与、与非运算后用Long.bitCount计数，不逐个解码值
+     *
+     * @param fromIndex
+     * @param toIndex
+     * @return 长度为 2^bitSize 的数组，各元素之和为 toIndex - fromIndex
+     * @throws IllegalArgumentException bitSize大于16
+     */
+    public long[] histogram(int fromIndex, int toIndex) {
+        checkIndex(fromIndex, toIndex);
+        if (bitSize > 16)
+            throw new IllegalArgumentException("bitSize of histogram can not be greater than 16:[bitSize=" + bitSize);
+        return new PlaneScanner(storage, bitSize).histogram(bitSize, fromIndex, toIndex, storage.length());
     }
 
-    private void checkValue(int value) {
-        if (value < 0 || value > maxValuePerBit)
+    /**
+     * 值不能为负数，超出bitSize的值不会出现在集合中
+     */
+    private boolean mayContain(int value) {
+        if (value < 0)
             throw new IllegalArgumentException("value = " + value);
+        return value <= maxValuePerBit;
+    }
+
+    /**
+     * 从fromIndex（包含）开始第一个值等于value的索引，value为0时与{@link #nextClearBit(int)}相同
+     *
+     * @param value
+     * @param fromIndex
+     * @return 不存在时返回-1
+     */
+    public int nextIndexOf(int value, int fromIndex) {
+        checkIndex(fromIndex);
+        if (!mayContain(value))
+            return -1;
+        if (value == 0)
+            return storage.nextClearBit(fromIndex);
+        return new PlaneScanner(storage, bitSize).nextIndexOf(value, fromIndex, storage.length());
+    }
+
+    /**
+     * 从fromIndex（包含）往前第一个值等于value的索引，value为0时与{@link #previousClearBit(int)}相同
+     *
+     * @param value
+     * @param fromIndex
+     * @return 不存在时返回-1
+     */
+    public int previousIndexOf(int value, int fromIndex) {
+        checkIndex(fromIndex);
+        if (!mayContain(value))
+            return -1;
+        if (value == 0)
+            return storage.previousClearBit(fromIndex);
+        return new PlaneScanner(storage, bitSize).previousIndexOf(value, fromIndex, storage.length());
+    }
+
+    /**
+     * 按索引从小到大回调[0, length())中值等于value的每一个索引
+     *
+     * @param value
+     * @param action
+     */
+    public void forEachIndexWithValue(int value, IntConsumer action) {
+        if (action == null)
+            throw new NullPointerException();
+        if (mayContain(value))
+            new PlaneScanner(storage, bitSize).forEachIndexOf(value, 0, storage.length(), action);
+    }
+
+    /**
+     * [0, length())中值在values中的索引，例如 indicesWhereValueIn(大学生, 研究生)
+     *
+     * @param values
+     * @return 索引的集合
+     */
+    public BitSet indicesWhereValueIn(int... values) {
+        return indicesWhereValueIn(0, length(), null, values);
+    }
+
+    /**
+     * [fromIndex, toIndex)中值在values中、并且在mask中的索引。
+     * 按维每次读出64个索引，对每个值做各维的与、与非运算，再把各个值的结果做或，不逐个解码值
+     *
+     * @param fromIndex
+     * @param toIndex
+     * @param mask      只保留mask中的索引，为null时不限制
+     * @param values    超出bitSize能够表示的值不会匹配任何索引
+     * @return 索引的集合
+     */
+    public BitSet indicesWhereValueIn(int fromIndex, int toIndex, BitSet mask, int... values) {
+        checkIndex(fromIndex, toIndex);
+        int[] candidates = new int[values.length];
+        int n = 0;
+        for (int value : values)
+            if (mayContain(value))
+                candidates[n++] = value;
+        Arrays.sort(candidates, 0, n);
+        int distinct = 0;
+        for (int i = 0; i < n; i++)
+            if (distinct == 0 || candidates[i] != candidates[distinct - 1])
+                candidates[distinct++] = candidates[i];
+        long[] words = new PlaneScanner(storage, bitSize).indicesOf(Arrays.copyOf(candidates, distinct),
+                fromIndex, toIndex, mask == null ? null : mask.toLongArray());
+        return BitSet.valueOf(words);
+    }
+
+    /**
+     * [0, length())中值小于value的索引
+     *
+     * @param value
+     * @return 索引的集合
+     */
+    public BitSet lessThan(int value) {
+        return lessThan(value, null);
+    }
+
+    /**
+     * filter中值小于value的索引，filter为null时范围为[0, length())
+     *
+     * @param value
+     * @param filter
+     * @return 索引的集合
+     */
+    public BitSet lessThan(int value, BitSet filter) {
+        //值都不小于0，value - 1在Integer.MIN_VALUE时会溢出
+        if (value <= 0)
+            return new BitSet();
+        return between(0, value - 1, filter);
+    }
+
+    /**
+     * [0, length())中值大于value的索引，值大于等于k的索引为 greaterThan(k - 1)
+     *
+     * @param value
+     * @return 索引的集合
+     */
+    public BitSet greaterThan(int value) {
+        return greaterThan(value, null);
+    }
+
+    /**
+     * filter中值大于value的索引，filter为null时范围为[0, length())
+     *
+     * @param value
+     * @param filter
+     * @return 索引的集合
+     */
+    public BitSet greaterThan(int value, BitSet filter) {
+        if (value >= maxValuePerBit)
+            return new BitSet();
+        return between(value + 1, maxValuePerBit, filter);
+    }
+
+    /**
+     * [0, length())中 lo <= 值 <= hi 的索引
+     *
+     * @param lo
+     * @param hi
+     * @return 索引的集合
+     */
+    public BitSet between(int lo, int hi) {
+        return between(lo, hi, null);
+    }
+
+    /**
+     * filter中 lo <= 值 <= hi 的索引，filter为null时范围为[0, length())。
+     * 把各维看作按位切片的索引，每64个索引从最高维到最低维各做一次与、或运算（O'Neil），不逐个解码值
+     *
+     * @param lo
+     * @param hi
+     * @param filter 只保留filter中的索引，filter中超出length()的索引的值为0
+     * @return 索引的集合
+     */
+    public BitSet between(int lo, int hi, BitSet filter) {
+        lo = Math.max(lo, 0);
+        hi = Math.min(hi, maxValuePerBit);
+        if (lo > hi)
+            return new BitSet();
+        int toIndex = filter == null ? length() : filter.length();
+        long[] words = new PlaneScanner(storage, bitSize).between(lo, hi, 0, toIndex,
+                filter == null ? null : filter.toLongArray());
+        return BitSet.valueOf(words);
+    }
+
+    /**
+     * [0, length())中所有值的和
+     *
+     * @return 值的和
+     */
+    public long sum() {
+        return sum(0, length());
+    }
+
+    /**
+     * [fromIndex, toIndex)中值的和。
+     * 按维统计范围内为1的位数，第p维的位数乘以 2^p 后相加，不逐个解码值
+     *
+     * @param fromIndex
+     * @param toIndex
+     * @return 值的和
+     */
+    public long sum(int fromIndex, int toIndex) {
+        checkIndex(fromIndex, toIndex);
+        return new PlaneScanner(storage, bitSize).sum(fromIndex, Math.min(toIndex, length()), null);
+    }
+
+    /**
+     * filter中的索引的值的和
+     *
+     * @param filter
+     * @return 值的和
+     */
+    public long sum(BitSet filter) {
+        return new PlaneScanner(storage, bitSize).sum(0, length(), filter.toLongArray());
+    }
+
+    /**
+     * [0, length())中最小的值
+     *
+     * @return 集合为空时返回-1
+     */
+    public int min() {
+        return min(0, length());
+    }
+
+    /**
+     * [fromIndex, toIndex)中最小的值。
+     * 每64个索引从最高维往下，保留这一维为0的索引，没有时这一维为1，不逐个解码值
+     *
+     * @param fromIndex
+     * @param toIndex
+     * @return fromIndex等于toIndex时返回-1
+     */
+    public int min(int fromIndex, int toIndex) {
+        checkIndex(fromIndex, toIndex);
+        //超出length()的值为0
+        if (fromIndex < toIndex && toIndex > length())
+            return 0;
+        return new PlaneScanner(storage, bitSize).extreme(fromIndex, toIndex, null, false);
+    }
+
+    /**
+     * filter中的索引的最小的值
+     *
+     * @param filter
+     * @return filter为空时返回-1
+     */
+    public int min(BitSet filter) {
+        int length = length();
+        if (filter.nextSetBit(length) >= 0)
+            return 0;
+        return new PlaneScanner(storage, bitSize).extreme(0, length, filter.toLongArray(), false);
+    }
+
+    /**
+     * [0, length())中最大的值
+     *
+     * @return 集合为空时返回-1
+     */
+    public int max() {
+        return max(0, length());
+    }
+
+    /**
+     * [fromIndex, toIndex)中最大的值，从最高维往下保留这一维为1的索引
+     *
+     * @param fromIndex
+     * @param toIndex
+     * @return fromIndex等于toIndex时返回-1
+     */
+    public int max(int fromIndex, int toIndex) {
+        checkIndex(fromIndex, toIndex);
+        if (fromIndex == toIndex)
+            return -1;
+        int max = new PlaneScanner(storage, bitSize).extreme(fromIndex, Math.min(toIndex, length()), null, true);
+        return Math.max(max, 0);
+    }
+
+    /**
+     * filter中的索引的最大的值
+     *
+     * @param filter
+     * @return filter为空时返回-1
+     */
+    public int max(BitSet filter) {
+        if (filter.isEmpty())
+            return -1;
+        int max = new PlaneScanner(storage, bitSize).extreme(0, length(), filter.toLongArray(), true);
+        return Math.max(max, 0);
+    }
+
+    /**
+     * [0, length())中值的平均数
+     *
+     * @return 集合为空时返回NaN
+     */
+    public double avg() {
+        return avg(0, length());
+    }
+
+    /**
+     * [fromIndex, toIndex)中值的平均数，即 sum(fromIndex, toIndex) / (toIndex - fromIndex)
+     *
+     * @param fromIndex
+     * @param toIndex
+     * @return fromIndex等于toIndex时返回NaN
+     */
+    public double avg(int fromIndex, int toIndex) {
+        long sum = sum(fromIndex, toIndex);
+        return fromIndex == toIndex ? Double.NaN : (double) sum / (toIndex - fromIndex);
+    }
+
+    /**
+     * filter中的索引的值的平均数
+     *
+     * @param filter
+     * @return filter为空时返回NaN
+     */
+    public double avg(BitSet filter) {
+        int count = filter.cardinality();
+        return count == 0 ? Double.NaN : (double) sum(filter) / count;
+    }
+
+    /**
+     * [0, length())中值最大的k个索引，值相同时取索引小的
+     *
+     * @param k
+     * @return 索引的集合，k不小于length()时为[0, length())
+     * @throws IllegalArgumentException k为负数
+     */
+    public BitSet topK(int k) {
+        int length = checkRank(k);
+        if (k >= length)
+            return all(length);
+        //第k大的值，大于它的索引全部入选，等于它的按索引补足k个
+        int threshold = new PlaneScanner(storage, bitSize).valueAtRank(length - k, 0, length);
+        return withTies(greaterThan(threshold), threshold, k, length);
+    }
+
+    /**
+     * [0, length())中值最小的k个索引，值相同时取索引小的
+     *
+     * @param k
+     * @return 索引的集合，k不小于length()时为[0, length())
+     * @throws IllegalArgumentException k为负数
+     */
+    public BitSet bottomK(int k) {
+        int length = checkRank(k);
+        if (k >= length)
+            return all(length);
+        int threshold = new PlaneScanner(storage, bitSize).valueAtRank(k - 1, 0, length);
+        return withTies(lessThan(threshold), threshold, k, length);
+    }
+
+    /**
+     * [0, length())中值的q分位数（nearest-rank）：从小到大第 max(1, ceil(q * length())) 个值，
+     * 例如quantile(0.5)为中位数，quantile(0.99)为p99。
+     * 从最高维往下每一维统计一次个数来确定这一位，不逐个解码值，也不排序
+     *
+     * @param q 0到1之间
+     * @return 集合为空时返回-1
+     * @throws IllegalArgumentException q不在[0, 1]中
+     */
+    public int quantile(double q) {
+        if (!(q >= 0 && q <= 1))
+            throw new IllegalArgumentException("q must be in [0,1]:[q=" + q);
+        int length = length();
+        if (length == 0)
+            return -1;
+        long rank = Math.max(1, (long) Math.ceil(q * length)) - 1;
+        return new PlaneScanner(storage, bitSize).valueAtRank(rank, 0, length);
+    }
+
+    private int checkRank(int k) {
+        if (k < 0)
+            throw new IllegalArgumentException("k = " + k);
+        return k == 0 ? 0 : length();
+    }
+
+    private static BitSet all(int length) {
+        BitSet all = new BitSet(length);
+        all.set(0, length);
+        return all;
+    }
+
+    /**
+     * 在selected中按索引从小到大补充值等于threshold的索引，直到共有k个
+     */
+    private BitSet withTies(BitSet selected, int threshold, int k, int length) {
+        int remaining = k - selected.cardinality();
+        BitSet ties = indicesWhereValueIn(0, length, null, threshold);
+        int last = -1;
+        for (int i = 0; i < remaining; i++)
+            last = ties.nextSetBit(last + 1);
+        ties.clear(last + 1, length);
+        selected.or(ties);
+        return selected;
+    }
+
+    /**
+     * 每个索引的值与other对应的值按位与，结果写入自身，按维每次处理一个long，不逐个解码值
+     *
+     * @param other bitSize必须相同
+     * @throws IllegalArgumentException bitSize不同
+     */
+    public void and(MultiBitSet other) {
+        and(other, false);
+    }
+
+    /**
+     * 每个索引的值与other对应的值按位与，结果写入自身
+     *
+     * @param other
+     * @param zeroExtend 为true时bitSize可以不同，较窄的一方高位补0
+     * @throws IllegalArgumentException zeroExtend为false并且bitSize不同
+     */
+    public void and(MultiBitSet other, boolean zeroExtend) {
+        combine(other, MultiBitStorage.Operation.AND, zeroExtend);
+    }
+
+    /**
+     * 返回a、b按位与的结果，a、b都不改变
+     *
+     * @param a
+     * @param b          bitSize必须与a相同
+     * @return 新的MultiBitSet，存储布局与a相同
+     * @throws IllegalArgumentException bitSize不同
+     */
+    public static MultiBitSet and(MultiBitSet a, MultiBitSet b) {
+        return and(a, b, false);
+    }
+
+    /**
+     * 返回a、b按位与的结果，a、b都不改变
+     *
+     * @param a
+     * @param b
+     * @param zeroExtend 为true时bitSize可以不同，较窄的一方高位补0
+     * @return 新的MultiBitSet，存储布局与a相同
+     * @throws IllegalArgumentException zeroExtend为false并且bitSize不同
+     */
+    public static MultiBitSet and(MultiBitSet a, MultiBitSet b, boolean zeroExtend) {
+        MultiBitSet result = a.copyForCombine(b, zeroExtend);
+        result.and(b, zeroExtend);
+        return result;
+    }
+
+    /**
+     * 每个索引的值与other对应的值按位或，结果写入自身，按维每次处理一个long，不逐个解码值
+     *
+     * @param other bitSize必须相同
+     * @throws IllegalArgumentException bitSize不同
+     */
+    public void or(MultiBitSet other) {
+        or(other, false);
+    }
+
+    /**
+     * 每个索引的值与other对应的值按位或，结果写入自身
+     *
+     * @param other
+     * @param zeroExtend 为true时bitSize可以不同，较窄的一方高位补0，结果需要更多的位时增加自身的bitSize
+     * @throws IllegalArgumentException zeroExtend为false并且bitSize不同
+     */
+    public void or(MultiBitSet other, boolean zeroExtend) {
+        combine(other, MultiBitStorage.Operation.OR, zeroExtend);
+    }
+
+    /**
+     * 返回a、b按位或的结果，a、b都不改变
+     *
+     * @param a
+     * @param b          bitSize必须与a相同
+     * @return 新的MultiBitSet，存储布局与a相同
+     * @throws IllegalArgumentException bitSize不同
+     */
+    public static MultiBitSet or(MultiBitSet a, MultiBitSet b) {
+        return or(a, b, false);
+    }
+
+    /**
+     * 返回a、b按位或的结果，a、b都不改变
+     *
+     * @param a
+     * @param b
+     * @param zeroExtend 为true时bitSize可以不同，较窄的一方高位补0
+     * @return 新的MultiBitSet，存储布局与a相同
+     * @throws IllegalArgumentException zeroExtend为false并且bitSize不同
+     */
+    public static MultiBitSet or(MultiBitSet a, MultiBitSet b, boolean zeroExtend) {
+        MultiBitSet result = a.copyForCombine(b, zeroExtend);
+        result.or(b, zeroExtend);
+        return result;
+    }
+
+    /**
+     * 每个索引的值与other对应的值按位异或，结果写入自身，按维每次处理一个long，不逐个解码值
+     *
+     * @param other bitSize必须相同
+     * @throws IllegalArgumentException bitSize不同
+     */
+    public void xor(MultiBitSet other) {
+        xor(other, false);
+    }
+
+    /**
+     * 每个索引的值与other对应的值按位异或，结果写入自身
+     *
+     * @param other
+     * @param zeroExtend 为true时bitSize可以不同，较窄的一方高位补0，结果需要更多的位时增加自身的bitSize
+     * @throws IllegalArgumentException zeroExtend为false并且bitSize不同
+     */
+    public void xor(MultiBitSet other, boolean zeroExtend) {
+        combine(other, MultiBitStorage.Operation.XOR, zeroExtend);
+    }
+
+    /**
+     * 返回a、b按位异或的结果，a、b都不改变
+     *
+     * @param a
+     * @param b          bitSize必须与a相同
+     * @return 新的MultiBitSet，存储布局与a相同
+     * @throws IllegalArgumentException bitSize不同
+     */
+    public static MultiBitSet xor(MultiBitSet a, MultiBitSet b) {
+        return xor(a, b, false);
+    }
+
+    /**
+     * 返回a、b按位异或的结果，a、b都不改变
+     *
+     * @param a
+     * @param b
+     * @param zeroExtend 为true时bitSize可以不同，较窄的一方高位补0
+     * @return 新的MultiBitSet，存储布局与a相同
+     * @throws IllegalArgumentException zeroExtend为false并且bitSize不同
+     */
+    public static MultiBitSet xor(MultiBitSet a, MultiBitSet b, boolean zeroExtend) {
+        MultiBitSet result = a.copyForCombine(b, zeroExtend);
+        result.xor(b, zeroExtend);
+        return result;
+    }
+
+    /**
+     * 每个索引的值与other对应的值按位与非（this & ~other），结果写入自身，按维每次处理一个long，不逐个解码值
+     *
+     * @param other bitSize必须相同
+     * @throws IllegalArgumentException bitSize不同
+     */
+    public void andNot(MultiBitSet other) {
+        andNot(other, false);
+    }
+
+    /**
+     * 每个索引的值与other对应的值按位与非（this & ~other），结果写入自身
+     *
+     * @param other
+     * @param zeroExtend 为true时bitSize可以不同，较窄的一方高位补0
+     * @throws IllegalArgumentException zeroExtend为false并且bitSize不同
+     */
+    public void andNot(MultiBitSet other, boolean zeroExtend) {
+        combine(other, MultiBitStorage.Operation.AND_NOT, zeroExtend);
+    }
+
+    /**
+     * 返回a、b按位与非（this & ~other）的结果，a、b都不改变
+     *
+     * @param a
+     * @param b          bitSize必须与a相同
+     * @return 新的MultiBitSet，存储布局与a相同
+     * @throws IllegalArgumentException bitSize不同
+     */
+    public static MultiBitSet andNot(MultiBitSet a, MultiBitSet b) {
+        return andNot(a, b, false);
+    }
+
+    /**
+     * 返回a、b按位与非（this & ~other）的结果，a、b都不改变
+     *
+     * @param a
+     * @param b
+     * @param zeroExtend 为true时bitSize可以不同，较窄的一方高位补0
+     * @return 新的MultiBitSet，存储布局与a相同
+     * @throws IllegalArgumentException zeroExtend为false并且bitSize不同
+     */
+    public static MultiBitSet andNot(MultiBitSet a, MultiBitSet b, boolean zeroExtend) {
+        MultiBitSet result = a.copyForCombine(b, zeroExtend);
+        result.andNot(b, zeroExtend);
+        return result;
+    }
+
+    private MultiBitSet copyForCombine(MultiBitSet other, boolean zeroExtend) {
+        checkBitSize(other, zeroExtend);
+        return get(0, length());
+    }
+
+    private void checkBitSize(MultiBitSet other, boolean zeroExtend) {
+        if (other == null)
+            throw new NullPointerException();
+        if (bitSize != other.bitSize && !zeroExtend)
+            throw new IllegalArgumentException("bitSize not match:[bitSize=" + bitSize + ",other.bitSize=" + other.bitSize);
+    }
+
+    /**
+     * 按维做逻辑运算，自身较窄并且是或、异或时先增加bitSize，与、与非的结果不会超出自身的位数
+     */
+    private void combine(MultiBitSet other, MultiBitStorage.Operation op, boolean zeroExtend) {
+        checkBitSize(other, zeroExtend);
+        if (other.bitSize > bitSize && (op == MultiBitStorage.Operation.OR || op == MultiBitStorage.Operation.XOR))
+            resize(other.bitSize);
+        storage.combine(other.storage, op, Math.min(bitSize, 31), Math.min(other.bitSize, 31));
     }
 
     /**
@@ -289,10 +1134,35 @@ public class MultiBitSet implements Serializable {
      * @return the number of bits set to {@code true} in this {@code BitSet}
      */
     public int cardinality() {
-        int maxCardinality = 0;
-        for (BitSet bitset : bitSets)
-            maxCardinality = Math.max(maxCardinality, bitset.cardinality());
-        return maxCardinality;
+        long[] counts = new long[bitSize];
+        planeCardinality(counts);
+        long maxCardinality = 0;
+        for (long count : counts)
+            maxCardinality = Math.max(maxCardinality, count);
+        return (int) maxCardinality;
+    }
+
+    /**
+     * 把每一维中为1的bit个数累加到counts[维]上
+     */
+    void planeCardinality(long[] counts) {
+        storage.planeCardinality(counts);
+    }
+
+    /**
+     * 压缩布局下为每一块重新选择占用内存最少的容器（例如把大段相同的值转换为连续段），
+     * 适合在批量写入完成之后调用。其它布局没有影响
+     */
+    public void optimize() {
+        if (storage instanceof CompressedStorage)
+            ((CompressedStorage) storage).optimize();
+    }
+
+    /**
+     * 每个值占用的bit数
+     */
+    public int getBitSize() {
+        return bitSize;
     }
 
     /**
@@ -303,10 +1173,7 @@ public class MultiBitSet implements Serializable {
      * @return the logical size of this {@code BitSet}
      */
     public int length() {
-        int maxLength = 0;
-        for (BitSet bitset : bitSets)
-            maxLength = Math.max(maxLength, bitset.length());
-        return maxLength;
+        return storage.length();
     }
 
     /**
@@ -330,18 +1197,7 @@ public class MultiBitSet implements Serializable {
      */
     public int nextSetBit(int fromIndex) {
         checkIndex(fromIndex);
-        int nextSetBit = Integer.MAX_VALUE;
-        int temp = -1;
-        for (BitSet bitset : bitSets) {
-            temp = bitset.nextSetBit(fromIndex);
-            if (temp == fromIndex) {
-                nextSetBit = temp;
-                break;
-            }
-            if (temp > 0)
-                nextSetBit = temp < nextSetBit ? temp : nextSetBit;
-        }
-        return nextSetBit == Integer.MAX_VALUE ? -1 : nextSetBit;
+        return storage.nextSetBit(fromIndex);
     }
 
     /**
@@ -355,25 +1211,7 @@ public class MultiBitSet implements Serializable {
      */
     public int nextClearBit(int fromIndex) {
         checkIndex(fromIndex);
-        int nextClearBit = -1;
-        int maxClearBitIndex = -1;
-        //获取最高位1
-        for (BitSet bitset : bitSets)
-            maxClearBitIndex = Math.max(maxClearBitIndex, bitset.nextClearBit(fromIndex));
-        int len = length();
-        for (int i = maxClearBitIndex; i < len; i++) {
-            boolean hasFound = true;
-            for (BitSet bitset : bitSets)
-                if (bitset.get(i)) {
-                    hasFound = false;
-                    break;
-                }
-            if (hasFound) {
-                nextClearBit = i;
-                break;
-            }
-        }
-        return nextClearBit;
+        return storage.nextClearBit(fromIndex);
     }
 
     /**
@@ -390,25 +1228,7 @@ public class MultiBitSet implements Serializable {
      */
     public int previousClearBit(int fromIndex) {
         checkIndex(fromIndex);
-        int previousClearBit = -1;
-        int minClearBitIndex = Integer.MAX_VALUE;
-        //获取最低位0
-        for (BitSet bitset : bitSets)
-            minClearBitIndex = Math.min(minClearBitIndex, bitset.previousClearBit(fromIndex));
-        for (int i = minClearBitIndex; i >= 0; i++) {
-            boolean hasFound = true;
-            for (BitSet bitset : bitSets)
-                if (bitset.get(i)) {
-                    hasFound = false;
-                    break;
-                }
-            if (hasFound) {
-                previousClearBit = i;
-                break;
-            }
-        }
-        return previousClearBit;
-
+        return storage.previousClearBit(fromIndex);
     }
 
     /**
@@ -433,18 +1253,7 @@ public class MultiBitSet implements Serializable {
      */
     public int previousSetBit(int fromIndex) {
         checkIndex(fromIndex);
-        int previousSetBit = -1;
-        int temp = -1;
-        for (BitSet bitset : bitSets) {
-            temp = bitset.previousSetBit(fromIndex);
-            if (temp == fromIndex) {
-                previousSetBit = temp;
-                break;
-            }
-            if (temp > 0)
-                previousSetBit = temp > previousSetBit ? temp : previousSetBit;
-        }
-        return previousSetBit;
+        return storage.previousSetBit(fromIndex);
     }
 
     /**
@@ -455,30 +1264,20 @@ public class MultiBitSet implements Serializable {
      * @return the number of bits currently in this bit set
      */
     public int size() {
-        int maxSize = -1;
-        for (BitSet bitset : bitSets)
-            maxSize += bitset.size();
-        return maxSize;
+        return storage.size();
     }
 
     public int hashCode() {
-        long hs = 0l;
-        for (int i = 0; i < bitSize; i++)
-            hs += bitSets[i].hashCode();
-        return (int) ((hs >> 32) ^ hs);
+        return storage.hashCode();
     }
 
     public boolean equal(Object o) {
         if (!(o instanceof MultiBitSet))
             return false;
         MultiBitSet set = (MultiBitSet) o;
-        if (this.bitSize != set.bitSize || set.bitSets.length != bitSize)
+        if (this.bitSize != set.bitSize)
             return false;
-        for (int i = 0; i < bitSize; i++)
-            if (!this.bitSets[i].equals(set.bitSets[i]))
-                return false;
-        return true;
-
+        return storage.contentEquals(set.storage);
     }
 
     /**
@@ -505,6 +1304,50 @@ public class MultiBitSet implements Serializable {
 
     }
 
+    /**
+     * 按{@link MappedMultiBitSet}的文件格式写入文件系统，
+     * 之后通过{@link MappedMultiBitSet#open(String)}映射打开，不需要反序列化
+     *
+     * @param path
+     * @throws IOException
+     */
+    public void writeMappedFile(String path) throws IOException {
+        if (path == null)
+            throw new NullPointerException();
+        if (bitSize > 32)
+            throw new UnsupportedOperationException("bitSize of mapped file can not be greater than 32:[bitSize=" + bitSize);
+        MappedStorage.write(storage, bitSize, new File(path));
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("bitSize", bitSize);
+        fields.put("maxValuePerBit", maxValuePerBit);
+        fields.put("storage", storage);
+        fields.put("growable", growable);
+        out.writeFields();
+    }
+
+    /**
+     * 旧文件只有bitSets字段，低位在bitSets[bitSize - 1]，反转后作为{@link Layout#PLANE}布局读入
+     */
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        bitSize = fields.get("bitSize", 0);
+        growable = fields.get("growable", false);
+        storage = (MultiBitStorage) fields.get("storage", null);
+        if (storage == null) {
+            BitSet[] bitSets = (BitSet[]) fields.get("bitSets", null);
+            if (bitSets == null || bitSets.length != bitSize)
+                throw new InvalidObjectException("neither storage nor bitSets of bitSize " + bitSize + " found");
+            BitSet[] planes = new BitSet[bitSize];
+            for (int i = 0; i < bitSize; i++)
+                planes[i] = bitSets[bitSize - 1 - i];
+            storage = new PlaneStorage(planes);
+        }
+        calMaxValuePerBit(bitSize);
+    }
+
     /**
      * Reconstitute the {@code BitSet} instance from a stream (i.e.,
      * deserialize it).
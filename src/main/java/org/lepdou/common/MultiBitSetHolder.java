@@ -0,0 +1,182 @@
+package org.lepdou.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * 持有一个只读的MultiBitSet，支持在不停止读的情况下整体替换（例如每小时重新加载一次数据）。
+ * ============================================================
+ * 每次替换产生一代，每一代记录正在读它的线程数：
+ * 读：取当前代，计数+1，再确认它仍然是当前代（否则计数-1后重试），读完计数-1；
+ * 写：在后台加载好新的MultiBitSet，用一次volatile写发布为当前代，
+ *     等旧一代的计数归0后，如果旧的MultiBitSet是Closeable的（堆外、映射文件）就关闭它。
+ * 计数与LongAdder一样分散在多个cell中，每个cell独占一个缓存行，线程按id选择cell，
+ * 不同线程的读一般不会竞争同一个缓存行；替换时对所有cell求和。
+ * 每个线程对同一个cell先+1后-1，每个cell都不会小于0，和为0时没有线程在读。
+ * 读永远不会阻塞，一次读只会看到同一代的数据，不会看到加载了一半的数据，
+ * 也不会读到已经关闭的MultiBitSet。
+ * ------------------------------------------------------------
+ * 通过{@link #read(Function)}读取时，不能把MultiBitSet的引用带出回调。
+ * 持有的MultiBitSet在发布后不应该再被修改。
+ */
+public class MultiBitSetHolder {
+
+    /**
+     * 相邻cell之间间隔的long个数，16个long为128字节，大于常见的缓存行
+     */
+    private static final int PAD = 16;
+
+    private static final int CELLS = cells();
+
+    private static int cells() {
+        int processors = Runtime.getRuntime().availableProcessors();
+        int n = 1;
+        while (n < 2 * processors && n < 64)
+            n <<= 1;
+        return n;
+    }
+
+    /**
+     * 当前线程使用的cell
+     */
+    private static int cell() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 58) & (CELLS - 1);
+    }
+
+    private static final class Generation {
+
+        final MultiBitSet set;
+
+        /**
+         * 第c个cell在下标(c + 1) * PAD处，前后都留出一个缓存行
+         */
+        final AtomicLongArray readers = new AtomicLongArray((CELLS + 2) * PAD);
+
+        Generation(MultiBitSet set) {
+            this.set = set;
+        }
+
+        void enter(int cell) {
+            readers.getAndIncrement((cell + 1) * PAD);
+        }
+
+        void exit(int cell) {
+            readers.getAndDecrement((cell + 1) * PAD);
+        }
+
+        long readers() {
+            long sum = 0;
+            for (int c = 0; c < CELLS; c++)
+                sum += readers.get((c + 1) * PAD);
+            return sum;
+        }
+    }
+
+    private volatile Generation current;
+
+    private final Object swapLock = new Object();
+
+    /**
+     * @param initial 第一代数据
+     */
+    public MultiBitSetHolder(MultiBitSet initial) {
+        if (initial == null)
+            throw new NullPointerException();
+        current = new Generation(initial);
+    }
+
+    private Generation acquire(int cell) {
+        while (true) {
+            Generation generation = current;
+            generation.enter(cell);
+            if (generation == current)
+                return generation;
+            generation.exit(cell);
+        }
+    }
+
+    /**
+     * 读取当前代第 index位的值
+     *
+     * @param index
+     */
+    public int get(int index) {
+        int cell = cell();
+        Generation generation = acquire(cell);
+        try {
+            return generation.set.get(index);
+        } finally {
+            generation.exit(cell);
+        }
+    }
+
+    /**
+     * 在同一代数据上执行多次读取
+     *
+     * @param reader 只在回调内使用传入的MultiBitSet
+     * @return reader的返回值
+     */
+    public <R> R read(Function<? super MultiBitSet, ? extends R> reader) {
+        int cell = cell();
+        Generation generation = acquire(cell);
+        try {
+            return reader.apply(generation.set);
+        } finally {
+            generation.exit(cell);
+        }
+    }
+
+    /**
+     * 发布新的一代，等正在读旧一代的线程读完后关闭旧的MultiBitSet（如果是Closeable的）。
+     * 多个线程同时替换时依次进行。
+     *
+     * @param set 已经加载完成的MultiBitSet
+     * @throws IOException 关闭旧的MultiBitSet失败，此时新的一代已经发布
+     */
+    public void swap(MultiBitSet set) throws IOException {
+        if (set == null)
+            throw new NullPointerException();
+        Generation old;
+        synchronized (swapLock) {
+            old = current;
+            current = new Generation(set);
+        }
+        while (old.readers() != 0)
+            LockSupport.parkNanos(10000);
+        if (old.set instanceof Closeable && old.set != set)
+            ((Closeable) old.set).close();
+    }
+
+    /**
+     * 在当前线程中加载新的一代并发布，加载失败时保留原来的数据
+     *
+     * @param loader 例如 () -> MultiBitSet.initFromInputStream(in)
+     * @throws Exception loader抛出的异常
+     */
+    public void reload(Callable<? extends MultiBitSet> loader) throws Exception {
+        swap(loader.call());
+    }
+
+    /**
+     * 在executor中加载新的一代并发布
+     *
+     * @param loader
+     * @param executor
+     * @return 加载并发布完成时结束，加载失败时通过Future.get()抛出异常
+     */
+    public Future<?> reloadAsync(final Callable<? extends MultiBitSet> loader, ExecutorService executor) {
+        return executor.submit(new Callable<Void>() {
+            public Void call() throws Exception {
+                reload(loader);
+                return null;
+            }
+        });
+    }
+}
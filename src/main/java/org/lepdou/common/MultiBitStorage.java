@@ -0,0 +1,270 @@
+package org.lepdou.common;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * MultiBitSet的底层存储。
+ * 存储层只负责按索引读写值，索引与值的合法性由MultiBitSet校验，
+ * 传入的value可能超出bitSize位，超出的高位由存储层忽略。
+ */
+abstract class MultiBitStorage implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 按维进行的逻辑运算
+     */
+    enum Operation {
+        AND {
+            long apply(long a, long b) {
+                return a & b;
+            }
+
+            void apply(BitSet a, BitSet b) {
+                a.and(b);
+            }
+        },
+        OR {
+            long apply(long a, long b) {
+                return a | b;
+            }
+
+            void apply(BitSet a, BitSet b) {
+                a.or(b);
+            }
+        },
+        XOR {
+            long apply(long a, long b) {
+                return a ^ b;
+            }
+
+            void apply(BitSet a, BitSet b) {
+                a.xor(b);
+            }
+        },
+        AND_NOT {
+            long apply(long a, long b) {
+                return a & ~b;
+            }
+
+            void apply(BitSet a, BitSet b) {
+                a.andNot(b);
+            }
+        };
+
+        abstract long apply(long a, long b);
+
+        abstract void apply(BitSet a, BitSet b);
+    }
+
+    abstract MultiBitSet.Layout layout();
+
+    abstract int get(int index);
+
+    abstract void set(int index, int value);
+
+    /**
+     * 把[fromIndex, toIndex)都设置为value
+     */
+    void set(int fromIndex, int toIndex, int value) {
+        for (int i = fromIndex; i < toIndex; i++)
+            set(i, value);
+    }
+
+    /**
+     * 把[offset, offset + values.length)依次设置为values中的值
+     */
+    void setAll(int offset, int[] values) {
+        for (int i = 0; i < values.length; i++)
+            set(offset + i, values[i]);
+    }
+
+    /**
+     * 把索引[base, base + 64)中落在[offset, offset + values.length)内的值转置到block：
+     * block[p]的第i位是索引base + i的值的第p位，范围外的位为0
+     */
+    static void transposeBlock(int[] values, int offset, long base, long[] block) {
+        for (int i = 0; i < 64; i++) {
+            long index = base + i - offset;
+            block[i] = index >= 0 && index < values.length ? values[(int) index] & 0xFFFFFFFFL : 0;
+        }
+        transpose(block);
+    }
+
+    /**
+     * 索引[base, base + 64)中落在[offset, offset + length)内的位
+     */
+    static long blockMask(int offset, int length, long base) {
+        long lo = Math.max(offset - base, 0);
+        long hi = Math.min(offset + (long) length - base, 64);
+        if (lo >= hi)
+            return 0;
+        return (hi == 64 ? -1L : (1L << hi) - 1) & (-1L << lo);
+    }
+
+    /**
+     * 64 x 64 的bit矩阵转置：a[i]的第j位与a[j]的第i位交换。
+     * 先交换右上和左下的 32 x 32 块，再对每一块递归，共6轮，每轮32次交换
+     */
+    static void transpose(long[] a) {
+        long m = 0x00000000FFFFFFFFL;
+        for (int j = 32; j != 0; j >>>= 1, m ^= m << j) {
+            for (int k = 0; k < 64; k = ((k | j) + 1) & ~j) {
+                long t = ((a[k] >>> j) ^ a[k | j]) & m;
+                a[k] ^= t << j;
+                a[k | j] ^= t;
+            }
+        }
+    }
+
+    /**
+     * 把第fromWord个long开始的n个long（即索引[fromWord * 64, (fromWord + n) * 64)）按维读出：
+     * planes[p][k]的第i位是索引(fromWord + k) * 64 + i的值的第p位，只读取planes.length维。
+     * 默认逐个读取非0值，适合非0值很少的存储
+     */
+    void readPlanes(int fromWord, int n, long[][] planes) {
+        for (long[] plane : planes)
+            Arrays.fill(plane, 0, n, 0);
+        long from = (long) fromWord << 6;
+        long to = from + ((long) n << 6);
+        for (int i = nextSetBit((int) from); i >= 0 && i < to; i = nextSetBit(i + 1)) {
+            int value = get(i);
+            int k = (int) ((i - from) >>> 6);
+            for (int p = 0; p < planes.length; p++)
+                if ((value & (1 << p)) != 0)
+                    planes[p][k] |= 1L << i;
+            if (i == Integer.MAX_VALUE)
+                break;
+        }
+    }
+
+    /**
+     * 与{@link #readPlanes(int, int, long[][])}相同，只读出第plane维到words[0, n)。
+     * 默认逐个读取非0值
+     */
+    void readPlane(int plane, int fromWord, int n, long[] words) {
+        Arrays.fill(words, 0, n, 0);
+        long from = (long) fromWord << 6;
+        long to = from + ((long) n << 6);
+        for (int i = nextSetBit((int) from); i >= 0 && i < to; i = nextSetBit(i + 1)) {
+            if ((get(i) & (1 << plane)) != 0)
+                words[(int) ((i - from) >>> 6)] |= 1L << i;
+            if (i == Integer.MAX_VALUE)
+                break;
+        }
+    }
+
+    /**
+     * 与other按维做逻辑运算，结果写入自身：第p维 = op(第p维, other的第p维)，
+     * 自身的前planes维参与运算，other只有前otherPlanes维，更高的维看作0。
+     * 默认每次按维读出两个存储的一段long，逐个long运算，
+     * 有变化的一段再每64个索引转置回值，用{@link #setAll(int, int[])}写回
+     */
+    void combine(MultiBitStorage other, Operation op, int planes, int otherPlanes) {
+        int toIndex = Math.max(length(), other.length());
+        if (toIndex == 0)
+            return;
+        int lastWord = (toIndex - 1) >>> 6;
+        int window = Math.min(PlaneScanner.WINDOW_WORDS, lastWord + 1);
+        long[][] words = new long[planes][window];
+        long[][] otherWords = new long[Math.min(planes, otherPlanes)][window];
+        long[] block = new long[64];
+        int[] values = new int[window << 6];
+        for (int word = 0; word <= lastWord; word += window) {
+            int n = Math.min(window, lastWord - word + 1);
+            readPlanes(word, n, words);
+            other.readPlanes(word, n, otherWords);
+            boolean changed = false;
+            for (int p = 0; p < planes; p++) {
+                for (int k = 0; k < n; k++) {
+                    long result = op.apply(words[p][k], p < otherWords.length ? otherWords[p][k] : 0);
+                    changed |= result != words[p][k];
+                    words[p][k] = result;
+                }
+            }
+            if (!changed)
+                continue;
+            for (int k = 0; k < n; k++) {
+                Arrays.fill(block, 0);
+                for (int p = 0; p < planes; p++)
+                    block[p] = words[p][k];
+                transpose(block);
+                for (int i = 0; i < 64; i++)
+                    values[(k << 6) + i] = (int) block[i];
+            }
+            int from = word << 6;
+            int count = (int) Math.min((long) n << 6, (long) toIndex - from);
+            setAll(from, count == values.length ? values : Arrays.copyOf(values, count));
+        }
+    }
+
+    /**
+     * 值不为0的最大索引 + 1
+     */
+    abstract int length();
+
+    /**
+     * 把每一维中为1的bit个数累加到counts[维]上
+     */
+    abstract void planeCardinality(long[] counts);
+
+    /**
+     * 从fromIndex（包含）开始第一个值不为0的索引，不存在时返回-1
+     */
+    abstract int nextSetBit(int fromIndex);
+
+    /**
+     * 从fromIndex（包含）往前第一个值不为0的索引，不存在时返回-1
+     */
+    abstract int previousSetBit(int fromIndex);
+
+    /**
+     * 从fromIndex（包含）开始第一个值为0的索引
+     */
+    abstract int nextClearBit(int fromIndex);
+
+    /**
+     * 从fromIndex（包含）往前第一个值为0的索引，不存在时返回-1
+     */
+    abstract int previousClearBit(int fromIndex);
+
+    /**
+     * 实际占用的bit数
+     */
+    abstract int size();
+
+    /**
+     * 修改每个值的bit数，返回修改后的存储（可能是自身）。
+     * 缩小时调用方保证所有值都能用newBitSize位表示
+     */
+    MultiBitStorage resize(int newBitSize) {
+        throw new UnsupportedOperationException("bitSize of " + getClass().getSimpleName() + " can not be changed");
+    }
+
+    /**
+     * 当前所有值的只读快照，之后对本存储的修改不会影响快照
+     */
+    MultiBitStorage snapshot() {
+        throw new UnsupportedOperationException("snapshot is only supported by " + MultiBitSet.Layout.PAGED + " layout");
+    }
+
+    /**
+     * 复制[fromIndex, toIndex)的值，新存储从0开始
+     */
+    abstract MultiBitStorage get(int fromIndex, int toIndex);
+
+    /**
+     * 逐个比较两个存储的值，用于不同布局之间的比较
+     */
+    boolean contentEquals(MultiBitStorage other) {
+        int len = length();
+        if (len != other.length())
+            return false;
+        for (int i = 0; i < len; i++)
+            if (get(i) != other.get(i))
+                return false;
+        return true;
+    }
+}
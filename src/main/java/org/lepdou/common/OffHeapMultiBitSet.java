@@ -0,0 +1,46 @@
+package org.lepdou.common;
+
+import java.io.Closeable;
+
+/**
+ * 数据存放在堆外的MultiBitSet，按{@link MultiBitSet.Layout#PACKED}布局存储。
+ * 几个G的数据不在Java堆中，GC不需要扫描和复制它们。
+ * <p/>
+ * 堆外内存不会随对象被回收而及时释放，使用完必须调用{@link #close()}，
+ * 关闭后的任何访问都会抛出IllegalStateException。
+ * get(fromIndex, toIndex)返回的是堆上的副本，不需要关闭。
+ * 不支持Java序列化。
+ */
+public class OffHeapMultiBitSet extends MultiBitSet implements Closeable {
+
+    private static final long serialVersionUID = 1L;
+
+    private final BufferStorage bufferStorage;
+
+    /**
+     * 创建指定维度的堆外MultiBitSet
+     *
+     * @param bitSize 不能大于32
+     */
+    public OffHeapMultiBitSet(int bitSize) {
+        this(bitSize, createStorage(bitSize));
+    }
+
+    private OffHeapMultiBitSet(int bitSize, BufferStorage bufferStorage) {
+        super(bitSize, bufferStorage);
+        this.bufferStorage = bufferStorage;
+    }
+
+    private static BufferStorage createStorage(int bitSize) {
+        if (bitSize <= 0 || bitSize > 32)
+            throw new IllegalArgumentException("bitSize must be in [1,32]:[bitSize=" + bitSize);
+        return new BufferStorage(bitSize);
+    }
+
+    /**
+     * 释放堆外内存，重复调用没有影响
+     */
+    public void close() {
+        bufferStorage.close();
+    }
+}
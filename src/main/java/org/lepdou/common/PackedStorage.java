@@ -0,0 +1,35 @@
+package org.lepdou.common;
+
+import java.util.Arrays;
+
+/**
+ * 堆上的按字存储，long数组按BitSet的方式扩容
+ */
+class PackedStorage extends AbstractPackedStorage {
+
+    private static final long serialVersionUID = 1L;
+
+    private long[] words;
+
+    PackedStorage(int bitSize) {
+        super(bitSize);
+        this.words = new long[1];
+    }
+
+    @Override
+    int wordCount() {
+        return words.length;
+    }
+
+    @Override
+    long word(int wordIndex) {
+        return words[wordIndex];
+    }
+
+    @Override
+    void setWord(int wordIndex, long word) {
+        if (wordIndex >= words.length)
+            words = Arrays.copyOf(words, Math.max(2 * words.length, wordIndex + 1));
+        words[wordIndex] = word;
+    }
+}
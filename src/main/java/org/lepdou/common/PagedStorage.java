@@ -0,0 +1,447 @@
+package org.lepdou.common;
+
+import java.util.Arrays;
+
+/**
+ * 分页存储。
+ * ============================================================
+ * 索引空间按每 2^16 个索引切分成固定大小的页，页内按维存储：
+ * pages[页][维][字]，每一维 1024 个long。
+ * 页在第一次写入非0值时才分配，没有分配的页读出来都是0。
+ * 写入很大的索引时只扩大页的引用数组，已有的页不会被复制，
+ * 而BitSet在增长时每一维都要复制整个long数组。
+ * ------------------------------------------------------------
+ * 快照：{@link #snapshot()}直接共享页的引用数组和所有页，不复制任何数据。
+ * 每一页记录它属于哪一代（epoch），每次快照后当前代+1，
+ * 之后写入旧一代的页时先复制这一页；引用数组在快照后的第一次修改时复制一次。
+ * 快照本身只读，写入时抛出UnsupportedOperationException。
+ */
+class PagedStorage extends MultiBitStorage {
+
+    private static final long serialVersionUID = 1L;
+
+    static final int PAGE_SHIFT = 16;
+
+    static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+
+    static final int PAGE_WORDS = PAGE_SIZE >>> 6;
+
+    private int bitSize;
+
+    private long[][][] pages;
+
+    /**
+     * 每一页创建或复制时的epoch
+     */
+    private int[] pageEpochs;
+
+    private int epoch;
+
+    /**
+     * pages和pageEpochs是否与快照共享
+     */
+    private boolean directoryShared;
+
+    private final boolean readOnly;
+
+    PagedStorage(int bitSize) {
+        this.bitSize = bitSize;
+        this.pages = new long[0][][];
+        this.pageEpochs = new int[0];
+        this.readOnly = false;
+    }
+
+    private PagedStorage(int bitSize, long[][][] pages, int[] pageEpochs) {
+        this.bitSize = bitSize;
+        this.pages = pages;
+        this.pageEpochs = pageEpochs;
+        this.readOnly = true;
+    }
+
+    /**
+     * 用已经复制好的页生成只读的存储，页不再被其他对象修改
+     */
+    static PagedStorage readOnly(int bitSize, long[][][] pages) {
+        return new PagedStorage(bitSize, pages, new int[pages.length]);
+    }
+
+    @Override
+    MultiBitSet.Layout layout() {
+        return MultiBitSet.Layout.PAGED;
+    }
+
+    private static long base(int pageIndex) {
+        return (long) pageIndex << PAGE_SHIFT;
+    }
+
+    private long[][] page(int pageIndex) {
+        return pageIndex < pages.length ? pages[pageIndex] : null;
+    }
+
+    /**
+     * 快照的所有写入都抛出异常，包括没有实际修改的写入（例如在没有分配的页上写0）
+     */
+    private void checkWritable() {
+        if (readOnly)
+            throw new UnsupportedOperationException("MultiBitSet is read-only");
+    }
+
+    /**
+     * 修改前保证引用数组至少有length页，并且不与快照共享
+     */
+    private void ownDirectory(int length) {
+        checkWritable();
+        if (length > pages.length || directoryShared) {
+            int n = length > pages.length ? Math.max(2 * pages.length, length) : pages.length;
+            pages = Arrays.copyOf(pages, n);
+            pageEpochs = Arrays.copyOf(pageEpochs, n);
+            directoryShared = false;
+        }
+    }
+
+    /**
+     * 可以写入的页：不存在时分配，与快照共享时复制
+     */
+    private long[][] pageForWrite(int pageIndex) {
+        ownDirectory(pageIndex + 1);
+        long[][] page = pages[pageIndex];
+        if (page == null) {
+            page = pages[pageIndex] = new long[bitSize][PAGE_WORDS];
+            pageEpochs[pageIndex] = epoch;
+        } else if (pageEpochs[pageIndex] != epoch) {
+            long[][] copy = new long[bitSize][];
+            for (int p = 0; p < bitSize; p++)
+                copy[p] = page[p].clone();
+            page = pages[pageIndex] = copy;
+            pageEpochs[pageIndex] = epoch;
+        }
+        return page;
+    }
+
+    /**
+     * O(1)的只读快照，与当前存储共享所有页
+     */
+    @Override
+    PagedStorage snapshot() {
+        if (readOnly)
+            return this;
+        directoryShared = true;
+        epoch++;
+        return new PagedStorage(bitSize, pages, pageEpochs);
+    }
+
+    @Override
+    int get(int index) {
+        long[][] page = page(index >>> PAGE_SHIFT);
+        if (page == null)
+            return 0;
+        int w = (index & PAGE_MASK) >>> 6;
+        int value = 0;
+        for (int p = 0; p < bitSize; p++)
+            value |= (int) ((page[p][w] >>> index) & 1) << p;
+        return value;
+    }
+
+    @Override
+    void set(int index, int value) {
+        checkWritable();
+        long[][] page = page(index >>> PAGE_SHIFT);
+        if (page == null && value == 0)
+            return;
+        page = pageForWrite(index >>> PAGE_SHIFT);
+        int w = (index & PAGE_MASK) >>> 6;
+        long bit = 1L << index;
+        for (int p = 0; p < bitSize; p++)
+            if ((value & (1 << p)) != 0)
+                page[p][w] |= bit;
+            else
+                page[p][w] &= ~bit;
+    }
+
+    /**
+     * 按字写入，覆盖整页且值为0时直接释放该页
+     */
+    @Override
+    void set(int fromIndex, int toIndex, int value) {
+        checkWritable();
+        if (fromIndex >= toIndex)
+            return;
+        int firstPage = fromIndex >>> PAGE_SHIFT;
+        int lastPage = (toIndex - 1) >>> PAGE_SHIFT;
+        for (int c = firstPage; c <= lastPage; c++) {
+            int lo = c == firstPage ? fromIndex & PAGE_MASK : 0;
+            int hi = c == lastPage ? ((toIndex - 1) & PAGE_MASK) + 1 : PAGE_SIZE;
+            long[][] page = page(c);
+            if (value == 0 && (page == null || (lo == 0 && hi == PAGE_SIZE))) {
+                if (page != null) {
+                    ownDirectory(0);
+                    pages[c] = null;
+                }
+                continue;
+            }
+            page = pageForWrite(c);
+            for (int p = 0; p < bitSize; p++)
+                fill(page[p], lo, hi, (value & (1 << p)) != 0);
+        }
+    }
+
+    /**
+     * 每64个值转置后直接写入页内每一维的一个long
+     */
+    @Override
+    void setAll(int offset, int[] values) {
+        checkWritable();
+        long[] block = new long[64];
+        long end = (long) offset + values.length;
+        for (long base = offset & ~63L; base < end; base += 64) {
+            transposeBlock(values, offset, base, block);
+            long mask = blockMask(offset, values.length, base);
+            int c = (int) (base >>> PAGE_SHIFT);
+            if (page(c) == null) {
+                long any = 0;
+                for (int p = 0; p < bitSize; p++)
+                    any |= block[p];
+                if (any == 0)
+                    continue;
+            }
+            long[][] page = pageForWrite(c);
+            int w = (int) (base & PAGE_MASK) >>> 6;
+            for (int p = 0; p < bitSize; p++)
+                page[p][w] = (page[p][w] & ~mask) | (p < 32 ? block[p] & mask : 0);
+        }
+    }
+
+    /**
+     * 把words中的[from, to)位设置为bit
+     */
+    static void fill(long[] words, int from, int to, boolean bit) {
+        int first = from >>> 6;
+        int last = (to - 1) >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> -to;
+        if (first == last) {
+            long mask = firstMask & lastMask;
+            words[first] = bit ? words[first] | mask : words[first] & ~mask;
+            return;
+        }
+        words[first] = bit ? words[first] | firstMask : words[first] & ~firstMask;
+        Arrays.fill(words, first + 1, last, bit ? -1L : 0L);
+        words[last] = bit ? words[last] | lastMask : words[last] & ~lastMask;
+    }
+
+    /**
+     * 直接复制页内每一维的long，没有分配的页为0
+     */
+    @Override
+    void readPlanes(int fromWord, int n, long[][] planes) {
+        for (int k = 0; k < n; ) {
+            int word = fromWord + k;
+            long[][] page = page(word >>> 10);
+            int w = word & (PAGE_WORDS - 1);
+            int count = Math.min(n - k, PAGE_WORDS - w);
+            for (int p = 0; p < planes.length; p++)
+                if (page == null)
+                    Arrays.fill(planes[p], k, k + count, 0);
+                else
+                    System.arraycopy(page[p], w, planes[p], k, count);
+            k += count;
+        }
+    }
+
+    @Override
+    void readPlane(int plane, int fromWord, int n, long[] words) {
+        for (int k = 0; k < n; ) {
+            int word = fromWord + k;
+            long[][] page = page(word >>> 10);
+            int w = word & (PAGE_WORDS - 1);
+            int count = Math.min(n - k, PAGE_WORDS - w);
+            if (page == null)
+                Arrays.fill(words, k, k + count, 0);
+            else
+                System.arraycopy(page[plane], w, words, k, count);
+            k += count;
+        }
+    }
+
+    /**
+     * 页内第w个字中值不为0的位
+     */
+    private long nonZero(long[][] page, int w) {
+        long word = 0;
+        for (int p = 0; p < bitSize; p++)
+            word |= page[p][w];
+        return word;
+    }
+
+    @Override
+    int length() {
+        for (int c = pages.length - 1; c >= 0; c--) {
+            long[][] page = pages[c];
+            if (page != null)
+                for (int w = PAGE_WORDS - 1; w >= 0; w--) {
+                    long word = nonZero(page, w);
+                    if (word != 0)
+                        return (int) (base(c) + (w << 6) + 64 - Long.numberOfLeadingZeros(word));
+                }
+        }
+        return 0;
+    }
+
+    @Override
+    void planeCardinality(long[] counts) {
+        for (long[][] page : pages)
+            if (page != null)
+                for (int p = 0; p < bitSize; p++)
+                    for (long word : page[p])
+                        counts[p] += Long.bitCount(word);
+    }
+
+    @Override
+    int nextSetBit(int fromIndex) {
+        int w = (fromIndex & PAGE_MASK) >>> 6;
+        long mask = -1L << fromIndex;
+        for (int c = fromIndex >>> PAGE_SHIFT; c < pages.length; c++, w = 0, mask = -1L) {
+            long[][] page = pages[c];
+            if (page == null)
+                continue;
+            for (; w < PAGE_WORDS; w++, mask = -1L) {
+                long word = nonZero(page, w) & mask;
+                if (word != 0)
+                    return (int) (base(c) + (w << 6) + Long.numberOfTrailingZeros(word));
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    int previousSetBit(int fromIndex) {
+        int c = fromIndex >>> PAGE_SHIFT;
+        int w = (fromIndex & PAGE_MASK) >>> 6;
+        long mask = -1L >>> ~fromIndex;
+        if (c >= pages.length) {
+            c = pages.length - 1;
+            w = PAGE_WORDS - 1;
+            mask = -1L;
+        }
+        for (; c >= 0; c--, w = PAGE_WORDS - 1, mask = -1L) {
+            long[][] page = pages[c];
+            if (page == null)
+                continue;
+            for (; w >= 0; w--, mask = -1L) {
+                long word = nonZero(page, w) & mask;
+                if (word != 0)
+                    return (int) (base(c) + (w << 6) + 63 - Long.numberOfLeadingZeros(word));
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    int nextClearBit(int fromIndex) {
+        int w = (fromIndex & PAGE_MASK) >>> 6;
+        long mask = -1L << fromIndex;
+        for (int c = fromIndex >>> PAGE_SHIFT; c < pages.length; c++, w = 0, mask = -1L) {
+            long[][] page = pages[c];
+            if (page == null)
+                return (int) (base(c) + (w << 6) + Long.numberOfTrailingZeros(mask));
+            for (; w < PAGE_WORDS; w++, mask = -1L) {
+                long word = ~nonZero(page, w) & mask;
+                if (word != 0)
+                    return (int) (base(c) + (w << 6) + Long.numberOfTrailingZeros(word));
+            }
+        }
+        return (int) Math.max(fromIndex, base(pages.length));
+    }
+
+    @Override
+    int previousClearBit(int fromIndex) {
+        int w = (fromIndex & PAGE_MASK) >>> 6;
+        long mask = -1L >>> ~fromIndex;
+        for (int c = fromIndex >>> PAGE_SHIFT; c >= 0; c--, w = PAGE_WORDS - 1, mask = -1L) {
+            long[][] page = page(c);
+            if (page == null)
+                return (int) (base(c) + (w << 6) + 63 - Long.numberOfLeadingZeros(mask));
+            for (; w >= 0; w--, mask = -1L) {
+                long word = ~nonZero(page, w) & mask;
+                if (word != 0)
+                    return (int) (base(c) + (w << 6) + 63 - Long.numberOfLeadingZeros(word));
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    int size() {
+        long size = 0;
+        for (long[][] page : pages)
+            if (page != null)
+                size += (long) bitSize * PAGE_SIZE;
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    @Override
+    void combine(MultiBitStorage other, Operation op, int planes, int otherPlanes) {
+        checkWritable();
+        super.combine(other, op, planes, otherPlanes);
+    }
+
+    /**
+     * 每一页只增删最高的几维，与快照共享的维在下次写入时复制
+     */
+    @Override
+    MultiBitStorage resize(int newBitSize) {
+        ownDirectory(0);
+        for (int c = 0; c < pages.length; c++) {
+            long[][] page = pages[c];
+            if (page != null) {
+                page = pages[c] = Arrays.copyOf(page, newBitSize);
+                for (int p = bitSize; p < newBitSize; p++)
+                    page[p] = new long[PAGE_WORDS];
+            }
+        }
+        bitSize = newBitSize;
+        return this;
+    }
+
+    @Override
+    MultiBitStorage get(int fromIndex, int toIndex) {
+        PagedStorage storage = new PagedStorage(bitSize);
+        for (int i = nextSetBit(fromIndex); i >= 0 && i < toIndex; i = nextSetBit(i + 1))
+            storage.set(i - fromIndex, get(i));
+        return storage;
+    }
+
+    @Override
+    boolean contentEquals(MultiBitStorage other) {
+        if (!(other instanceof PagedStorage))
+            return super.contentEquals(other);
+        PagedStorage set = (PagedStorage) other;
+        if (set.bitSize != bitSize)
+            return false;
+        int n = Math.max(pages.length, set.pages.length);
+        for (int c = 0; c < n; c++) {
+            long[][] a = page(c);
+            long[][] b = set.page(c);
+            for (int p = 0; p < bitSize && (a != null || b != null); p++)
+                for (int w = 0; w < PAGE_WORDS; w++)
+                    if ((a == null ? 0 : a[p][w]) != (b == null ? 0 : b[p][w]))
+                        return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        long h = 1234;
+        for (int c = 0; c < pages.length; c++) {
+            long[][] page = pages[c];
+            if (page != null)
+                for (int p = 0; p < bitSize; p++)
+                    for (int w = 0; w < PAGE_WORDS; w++)
+                        h ^= page[p][w] * ((((long) c * PAGE_WORDS + w) * bitSize + p) + 1);
+        }
+        return (int) ((h >> 32) ^ h);
+    }
+}
@@ -0,0 +1,387 @@
+package org.lepdou.common;
+
+import java.util.function.IntConsumer;
+
+/**
+ * 按维批量扫描。
+ * ============================================================
+ * 每次从存储中按维读出一段long（{@link MultiBitStorage#readPlanes}），
+ * 同一个位置上各维的long做与、与非运算，一次得到64个索引的结果：
+ * 值等于value的索引 = 与(第p位为1的维) & 与(第p位为0的维取反)
+ * 再用Long.bitCount计数，或者逐个取出为1的位，不需要逐个解码值。
+ */
+final class PlaneScanner {
+
+    /**
+     * 每次最多读取 1024 个long，即 2^16 个索引
+     */
+    static final int WINDOW_WORDS = 1024;
+
+    private final MultiBitStorage storage;
+
+    private final int planeCount;
+
+    /**
+     * planes[p][k]：当前窗口第k个long的第p维
+     */
+    long[][] planes;
+
+    PlaneScanner(MultiBitStorage storage, int bitSize) {
+        this.storage = storage;
+        //int的值最多31位，更高的维都为0
+        this.planeCount = Math.min(bitSize, 31);
+        this.planes = new long[planeCount][0];
+    }
+
+    /**
+     * 读取从fromWord开始的n个long，n不超过WINDOW_WORDS
+     */
+    void load(int fromWord, int n) {
+        if (planeCount > 0 && planes[0].length < n)
+            planes = new long[planeCount][n];
+        storage.readPlanes(fromWord, n, planes);
+    }
+
+    /**
+     * 当前窗口第k个long中值等于value的位
+     */
+    long match(int k, int value) {
+        long mask = -1L;
+        for (int p = 0; p < planeCount; p++)
+            mask &= (value & (1 << p)) != 0 ? planes[p][k] : ~planes[p][k];
+        return mask;
+    }
+
+    /**
+     * 当前窗口第k个long中值不为0的位
+     */
+    long nonZero(int k) {
+        long mask = 0;
+        for (int p = 0; p < planeCount; p++)
+            mask |= planes[p][k];
+        return mask;
+    }
+
+    /**
+     * 第word个long中落在[fromIndex, toIndex)内的位
+     */
+    static long rangeMask(int word, int fromIndex, long toIndex) {
+        long base = (long) word << 6;
+        long mask = -1L;
+        if (fromIndex > base)
+            mask &= -1L << fromIndex;
+        if (toIndex < base + 64)
+            mask &= (1L << toIndex) - 1;
+        return mask;
+    }
+
+    /**
+     * 第word个long中落在[fromIndex, toIndex)内、并且在mask中（mask不为null时）的位
+     */
+    private static long rangeMask(int word, int fromIndex, int toIndex, long[] mask) {
+        long range = rangeMask(word, fromIndex, toIndex);
+        return mask == null ? range : range & mask[word];
+    }
+
+    /**
+     * mask不为null时，toIndex不超过mask覆盖的索引
+     */
+    private static int clamp(int toIndex, long[] mask) {
+        return mask == null ? toIndex : (int) Math.min(toIndex, (long) mask.length << 6);
+    }
+
+    /**
+     * [fromIndex, toIndex)中每个值出现的次数，length为存储的length()
+     */
+    long[] histogram(int bitSize, int fromIndex, int toIndex, int length) {
+        long[] counts = new long[1 << bitSize];
+        int end = Math.min(toIndex, length);
+        if (fromIndex < end) {
+            int firstWord = fromIndex >>> 6;
+            int lastWord = (end - 1) >>> 6;
+            for (int word = firstWord; word <= lastWord; word += WINDOW_WORDS) {
+                int n = Math.min(WINDOW_WORDS, lastWord - word + 1);
+                load(word, n);
+                for (int k = 0; k < n; k++) {
+                    long mask = rangeMask(word + k, fromIndex, end);
+                    if (nonZero(k) == 0)
+                        counts[0] += Long.bitCount(mask);
+                    else
+                        count(k, planeCount - 1, mask, 0, counts);
+                }
+            }
+        }
+        counts[0] += toIndex - Math.max(fromIndex, Math.min(toIndex, length));
+        return counts;
+    }
+
+    /**
+     * 从最高维开始按每一维的0和1拆分mask，到最低维时mask中的位的值都是prefix
+     */
+    private void count(int k, int p, long mask, int prefix, long[] counts) {
+        if (mask == 0)
+            return;
+        if (p < 0) {
+            counts[prefix] += Long.bitCount(mask);
+            return;
+        }
+        long plane = planes[p][k];
+        count(k, p - 1, mask & plane, prefix | (1 << p), counts);
+        count(k, p - 1, mask & ~plane, prefix, counts);
+    }
+
+    /**
+     * 从fromIndex（包含）开始第一个值等于value的索引，value不为0，不存在时返回-1。
+     * 读取的窗口从1个long开始翻倍，相邻的匹配只需要读很少的long
+     */
+    int nextIndexOf(int value, int fromIndex, int length) {
+        if (fromIndex >= length)
+            return -1;
+        int lastWord = (length - 1) >>> 6;
+        int n = 1;
+        for (int word = fromIndex >>> 6; word <= lastWord; word += n, n = Math.min(2 * n, WINDOW_WORDS)) {
+            n = Math.min(n, lastWord - word + 1);
+            load(word, n);
+            for (int k = 0; k < n; k++) {
+                long mask = match(k, value) & rangeMask(word + k, fromIndex, length);
+                if (mask != 0)
+                    return ((word + k) << 6) + Long.numberOfTrailingZeros(mask);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 从fromIndex（包含）往前第一个值等于value的索引，value不为0，不存在时返回-1
+     */
+    int previousIndexOf(int value, int fromIndex, int length) {
+        int last = Math.min(fromIndex, length - 1);
+        if (last < 0)
+            return -1;
+        int n = 1;
+        for (int word = last >>> 6; word >= 0; word -= n, n = Math.min(2 * n, WINDOW_WORDS)) {
+            n = Math.min(n, word + 1);
+            int first = word - n + 1;
+            load(first, n);
+            for (int k = n - 1; k >= 0; k--) {
+                long mask = match(k, value) & rangeMask(first + k, 0, (long) last + 1);
+                if (mask != 0)
+                    return ((first + k) << 6) + 63 - Long.numberOfLeadingZeros(mask);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 按索引从小到大回调[fromIndex, toIndex)中值等于value的索引
+     */
+    void forEachIndexOf(int value, int fromIndex, int toIndex, IntConsumer action) {
+        if (fromIndex >= toIndex)
+            return;
+        int firstWord = fromIndex >>> 6;
+        int lastWord = (toIndex - 1) >>> 6;
+        for (int word = firstWord; word <= lastWord; word += WINDOW_WORDS) {
+            int n = Math.min(WINDOW_WORDS, lastWord - word + 1);
+            load(word, n);
+            for (int k = 0; k < n; k++) {
+                long mask = match(k, value) & rangeMask(word + k, fromIndex, toIndex);
+                int base = (word + k) << 6;
+                for (; mask != 0; mask &= mask - 1)
+                    action.accept(base + Long.numberOfTrailingZeros(mask));
+            }
+        }
+    }
+
+    /**
+     * 由当前窗口第k个long的各维计算出64个索引的结果
+     */
+    interface WordPredicate {
+        long test(int k);
+    }
+
+    /**
+     * [fromIndex, toIndex)中满足predicate的索引，按long返回（第w个long对应索引[w * 64, w * 64 + 64)），
+     * mask不为null时再与mask的long做与
+     */
+    long[] select(int fromIndex, int toIndex, long[] mask, WordPredicate predicate) {
+        toIndex = clamp(toIndex, mask);
+        if (fromIndex >= toIndex)
+            return new long[0];
+        int firstWord = fromIndex >>> 6;
+        int lastWord = (toIndex - 1) >>> 6;
+        long[] words = new long[lastWord + 1];
+        for (int word = firstWord; word <= lastWord; word += WINDOW_WORDS) {
+            int n = Math.min(WINDOW_WORDS, lastWord - word + 1);
+            load(word, n);
+            for (int k = 0; k < n; k++) {
+                long range = rangeMask(word + k, fromIndex, toIndex, mask);
+                if (range != 0)
+                    words[word + k] = predicate.test(k) & range;
+            }
+        }
+        return words;
+    }
+
+    /**
+     * [fromIndex, toIndex)中值在values中的索引，
+     * 每个long的结果是各个值的匹配结果的或（积之和）
+     */
+    long[] indicesOf(final int[] values, int fromIndex, int toIndex, long[] mask) {
+        if (values.length == 0)
+            return new long[0];
+        return select(fromIndex, toIndex, mask, new WordPredicate() {
+            public long test(int k) {
+                long result = 0;
+                for (int value : values)
+                    result |= match(k, value);
+                return result;
+            }
+        });
+    }
+
+    /**
+     * [fromIndex, toIndex)中lo <= 值 <= hi的索引，0 <= lo <= hi。
+     * O'Neil的按位切片比较：从最高维往下，记录已经确定小于lo的位、已经确定大于hi的位，
+     * 以及到目前为止与lo、hi的高位都相等的位
+     */
+    long[] between(final int lo, final int hi, int fromIndex, int toIndex, long[] mask) {
+        return select(fromIndex, toIndex, mask, new WordPredicate() {
+            public long test(int k) {
+                long lessThanLo = 0;
+                long equalLo = -1L;
+                long greaterThanHi = 0;
+                long equalHi = -1L;
+                for (int p = planeCount - 1; p >= 0; p--) {
+                    long plane = planes[p][k];
+                    if ((lo & (1 << p)) != 0) {
+                        lessThanLo |= equalLo & ~plane;
+                        equalLo &= plane;
+                    } else {
+                        equalLo &= ~plane;
+                    }
+                    if ((hi & (1 << p)) != 0) {
+                        equalHi &= plane;
+                    } else {
+                        greaterThanHi |= equalHi & plane;
+                        equalHi &= ~plane;
+                    }
+                }
+                return ~lessThanLo & ~greaterThanHi;
+            }
+        });
+    }
+
+    /**
+     * [fromIndex, toIndex)中（mask不为null时只看mask中的索引）值的和，
+     * 即 Σ 2^p * bitCount(第p维 & 范围)
+     */
+    long sum(int fromIndex, int toIndex, long[] mask) {
+        toIndex = clamp(toIndex, mask);
+        if (fromIndex >= toIndex)
+            return 0;
+        long[] counts = new long[planeCount];
+        int firstWord = fromIndex >>> 6;
+        int lastWord = (toIndex - 1) >>> 6;
+        for (int word = firstWord; word <= lastWord; word += WINDOW_WORDS) {
+            int n = Math.min(WINDOW_WORDS, lastWord - word + 1);
+            load(word, n);
+            for (int k = 0; k < n; k++) {
+                long range = rangeMask(word + k, fromIndex, toIndex, mask);
+                if (range != 0)
+                    for (int p = 0; p < planeCount; p++)
+                        counts[p] += Long.bitCount(planes[p][k] & range);
+            }
+        }
+        long sum = 0;
+        for (int p = 0; p < planeCount; p++)
+            sum += counts[p] << p;
+        return sum;
+    }
+
+    /**
+     * [fromIndex, toIndex)中（mask不为null时只看mask中的索引）最小（max为true时最大）的值，没有索引时返回-1。
+     * 每个long从最高维往下缩小候选的位：求最小值时保留这一维为0的位，都为1时这一维为1；求最大值时相反
+     */
+    int extreme(int fromIndex, int toIndex, long[] mask, boolean max) {
+        toIndex = clamp(toIndex, mask);
+        if (fromIndex >= toIndex)
+            return -1;
+        int result = -1;
+        int firstWord = fromIndex >>> 6;
+        int lastWord = (toIndex - 1) >>> 6;
+        for (int word = firstWord; word <= lastWord; word += WINDOW_WORDS) {
+            int n = Math.min(WINDOW_WORDS, lastWord - word + 1);
+            load(word, n);
+            for (int k = 0; k < n; k++) {
+                long candidates = rangeMask(word + k, fromIndex, toIndex, mask);
+                if (candidates == 0)
+                    continue;
+                int value = 0;
+                for (int p = planeCount - 1; p >= 0; p--) {
+                    long narrowed = candidates & (max ? planes[p][k] : ~planes[p][k]);
+                    if (narrowed != 0)
+                        candidates = narrowed;
+                    if ((narrowed != 0) == max)
+                        value |= 1 << p;
+                }
+                if (result < 0 || (max ? value > result : value < result))
+                    result = value;
+                if (!max && result == 0)
+                    return 0;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * [fromIndex, toIndex)中的值从小到大排列后第rank个（从0开始）值，rank小于toIndex - fromIndex。
+     * equal记录高位等于已确定的前缀的索引，从最高维往下每一维只读这一维：
+     * 统计equal中这一维为0的索引个数，rank小于它时这一维为0，否则这一维为1并从rank中减去它，
+     * 再读一次这一维，把equal与上这一维（或其取反）。equal为0的窗口不再读取
+     */
+    int valueAtRank(long rank, int fromIndex, int toIndex) {
+        int firstWord = fromIndex >>> 6;
+        int lastWord = (toIndex - 1) >>> 6;
+        long[] equal = new long[lastWord - firstWord + 1];
+        for (int w = firstWord; w <= lastWord; w++)
+            equal[w - firstWord] = rangeMask(w, fromIndex, toIndex);
+        long[] plane = new long[Math.min(WINDOW_WORDS, equal.length)];
+        int prefix = 0;
+        for (int p = planeCount - 1; p >= 0; p--) {
+            long count = 0;
+            for (int word = firstWord; word <= lastWord; word += WINDOW_WORDS) {
+                int offset = word - firstWord;
+                int n = Math.min(WINDOW_WORDS, lastWord - word + 1);
+                if (isZero(equal, offset, n))
+                    continue;
+                storage.readPlane(p, word, n, plane);
+                for (int k = 0; k < n; k++)
+                    count += Long.bitCount(equal[offset + k] & ~plane[k]);
+            }
+            boolean one = rank >= count;
+            if (one) {
+                rank -= count;
+                prefix |= 1 << p;
+            }
+            if (p == 0)
+                break;
+            for (int word = firstWord; word <= lastWord; word += WINDOW_WORDS) {
+                int offset = word - firstWord;
+                int n = Math.min(WINDOW_WORDS, lastWord - word + 1);
+                if (isZero(equal, offset, n))
+                    continue;
+                storage.readPlane(p, word, n, plane);
+                for (int k = 0; k < n; k++)
+                    equal[offset + k] &= one ? plane[k] : ~plane[k];
+            }
+        }
+        return prefix;
+    }
+
+    private static boolean isZero(long[] words, int offset, int n) {
+        for (int k = 0; k < n; k++)
+            if (words[offset + k] != 0)
+                return false;
+        return true;
+    }
+}
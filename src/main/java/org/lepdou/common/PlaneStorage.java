@@ -0,0 +1,304 @@
+package org.lepdou.common;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * 按维存储：用一个BitSet表示一维
+ * ============================================================
+ * 例：
+ * ***|***|***|***|***|***|***|***|***|
+ * 0   1   2   3  ....
+ * =》
+ * MultiBitSet[2] = bitSets[2][2] + bitSets[1][2] + bitSets[0][2]
+ * *** = bitSets[2,1,0] 在一个Bit里低位用低数组的下标表示
+ */
+class PlaneStorage extends MultiBitStorage {
+
+    private static final long serialVersionUID = 1L;
+
+    private int bitSize;
+
+    private BitSet[] bitSets;
+
+    PlaneStorage(int bitSize) {
+        this.bitSize = bitSize;
+        bitSets = new BitSet[bitSize];
+        for (int i = 0; i < bitSize; i++)
+            bitSets[i] = new BitSet();
+    }
+
+    PlaneStorage(BitSet[] bitSets) {
+        this.bitSize = bitSets.length;
+        this.bitSets = bitSets;
+    }
+
+    @Override
+    MultiBitSet.Layout layout() {
+        return MultiBitSet.Layout.PLANE;
+    }
+
+    /**
+     * 第i维对应value的第i位，不产生中间对象
+     */
+    @Override
+    int get(int index) {
+        int value = 0;
+        for (int i = 0; i < bitSize && i < 32; i++)
+            if (bitSets[i].get(index))
+                value |= 1 << i;
+        return value;
+    }
+
+    @Override
+    void set(int index, int value) {
+        for (int i = 0; i < bitSize; i++)
+            if (i < 32 && (value & (1 << i)) != 0)
+                bitSets[i].set(index);
+            else
+                bitSets[i].clear(index);
+    }
+
+    /**
+     * 每一维调用一次BitSet.set(from, to, bit)，按long写入
+     */
+    @Override
+    void set(int fromIndex, int toIndex, int value) {
+        for (int i = 0; i < bitSize; i++)
+            bitSets[i].set(fromIndex, toIndex, i < 32 && (value & (1 << i)) != 0);
+    }
+
+    /**
+     * 每64个值转置为每一维的一个long，按字写入：
+     * 每一维只生成覆盖[offset, end)的long数组，不补offset之前的0。
+     * 存储为空且从0开始写入时直接用它生成BitSet，否则先clear(offset, end)再合并进去。
+     * 每一维写完后立即释放对应的数组，临时内存不超过values转置后的大小
+     */
+    @Override
+    void setAll(int offset, int[] values) {
+        if (values.length == 0)
+            return;
+        long[] block = new long[64];
+        int planes = Math.min(bitSize, 32);
+        long end = (long) offset + values.length;
+        int firstWord = offset >>> 6;
+        int lastWord = (int) ((end - 1) >>> 6);
+        long[][] words = new long[planes][lastWord - firstWord + 1];
+        for (int w = firstWord; w <= lastWord; w++) {
+            transposeBlock(values, offset, (long) w << 6, block);
+            for (int i = 0; i < planes; i++)
+                words[i][w - firstWord] = block[i];
+        }
+        boolean empty = offset == 0 && length() == 0;
+        for (int i = 0; i < bitSize; i++) {
+            if (empty) {
+                if (i < planes)
+                    bitSets[i] = BitSet.valueOf(words[i]);
+            } else {
+                clear(bitSets[i], offset, end);
+                if (i < planes)
+                    or(bitSets[i], words[i], firstWord);
+            }
+            if (i < planes)
+                words[i] = null;
+        }
+    }
+
+    /**
+     * bitSet |= words左移firstWord个long。
+     * firstWord为0时直接与BitSet.valueOf(words)做or；
+     * 否则BitSet没有按偏移合并的方法，对每一段连续的1调用一次set(from, to)
+     */
+    private static void or(BitSet bitSet, long[] words, int firstWord) {
+        if (firstWord == 0) {
+            bitSet.or(BitSet.valueOf(words));
+            return;
+        }
+        for (int k = 0; k < words.length; k++) {
+            long word = words[k];
+            long base = (long) (firstWord + k) << 6;
+            while (word != 0) {
+                int from = Long.numberOfTrailingZeros(word);
+                int to = from + Long.numberOfTrailingZeros(~(word >>> from));
+                set(bitSet, base + from, base + to);
+                word = to == 64 ? 0 : word & (-1L << to);
+            }
+        }
+    }
+
+    /**
+     * 设置[from, to)，to可以是 2^31
+     */
+    private static void set(BitSet bitSet, long from, long to) {
+        bitSet.set((int) from, (int) Math.min(to, Integer.MAX_VALUE));
+        if (to > Integer.MAX_VALUE)
+            bitSet.set(Integer.MAX_VALUE);
+    }
+
+    /**
+     * 清除[from, to)，to可以是 2^31
+     */
+    private static void clear(BitSet bitSet, long from, long to) {
+        bitSet.clear((int) from, (int) Math.min(to, Integer.MAX_VALUE));
+        if (to > Integer.MAX_VALUE)
+            bitSet.clear(Integer.MAX_VALUE);
+    }
+
+    /**
+     * 每一维用BitSet.get(from, to)按long复制出来
+     */
+    @Override
+    void readPlanes(int fromWord, int n, long[][] planes) {
+        for (int p = 0; p < planes.length; p++)
+            readPlane(p, fromWord, n, planes[p]);
+    }
+
+    @Override
+    void readPlane(int plane, int fromWord, int n, long[] words) {
+        int from = fromWord << 6;
+        long to = from + ((long) n << 6);
+        long[] copy = bitSets[plane].get(from, (int) Math.min(to, Integer.MAX_VALUE)).toLongArray();
+        int copied = Math.min(copy.length, n);
+        System.arraycopy(copy, 0, words, 0, copied);
+        Arrays.fill(words, copied, n, 0);
+        //BitSet.get(from, to)取不到Integer.MAX_VALUE
+        if (to > Integer.MAX_VALUE && bitSets[plane].get(Integer.MAX_VALUE))
+            words[n - 1] |= Long.MIN_VALUE;
+    }
+
+    /**
+     * 两边都是按维存储时，每一维直接调用BitSet的and/or/xor/andNot
+     */
+    @Override
+    void combine(MultiBitStorage other, Operation op, int planes, int otherPlanes) {
+        if (!(other instanceof PlaneStorage)) {
+            super.combine(other, op, planes, otherPlanes);
+            return;
+        }
+        BitSet[] others = ((PlaneStorage) other).bitSets;
+        for (int i = 0; i < planes; i++)
+            op.apply(bitSets[i], i < otherPlanes ? others[i] : new BitSet());
+    }
+
+    /**
+     * 只增删最高的几维，其余的维不动
+     */
+    @Override
+    MultiBitStorage resize(int newBitSize) {
+        BitSet[] resized = Arrays.copyOf(bitSets, newBitSize);
+        for (int i = bitSize; i < newBitSize; i++)
+            resized[i] = new BitSet();
+        bitSets = resized;
+        bitSize = newBitSize;
+        return this;
+    }
+
+    @Override
+    int length() {
+        int maxLength = 0;
+        for (BitSet bitset : bitSets)
+            maxLength = Math.max(maxLength, bitset.length());
+        return maxLength;
+    }
+
+    @Override
+    void planeCardinality(long[] counts) {
+        for (int i = 0; i < bitSize; i++)
+            counts[i] += bitSets[i].cardinality();
+    }
+
+    @Override
+    int nextSetBit(int fromIndex) {
+        int nextSetBit = -1;
+        for (BitSet bitset : bitSets) {
+            int temp = bitset.nextSetBit(fromIndex);
+            if (temp >= 0 && (nextSetBit < 0 || temp < nextSetBit))
+                nextSetBit = temp;
+        }
+        return nextSetBit;
+    }
+
+    @Override
+    int previousSetBit(int fromIndex) {
+        int previousSetBit = -1;
+        for (BitSet bitset : bitSets)
+            previousSetBit = Math.max(previousSetBit, bitset.previousSetBit(fromIndex));
+        return previousSetBit;
+    }
+
+    /**
+     * 每一维都跳到自己的下一个0，直到所有维停在同一个索引上
+     */
+    @Override
+    int nextClearBit(int fromIndex) {
+        int index = fromIndex;
+        boolean moved = true;
+        while (moved) {
+            moved = false;
+            for (BitSet bitset : bitSets) {
+                int temp = bitset.nextClearBit(index);
+                if (temp != index) {
+                    index = temp;
+                    moved = true;
+                }
+            }
+        }
+        return index;
+    }
+
+    @Override
+    int previousClearBit(int fromIndex) {
+        int index = fromIndex;
+        boolean moved = true;
+        while (moved && index >= 0) {
+            moved = false;
+            for (BitSet bitset : bitSets) {
+                int temp = bitset.previousClearBit(index);
+                if (temp != index) {
+                    index = temp;
+                    moved = true;
+                    if (index < 0)
+                        break;
+                }
+            }
+        }
+        return index;
+    }
+
+    @Override
+    int size() {
+        int size = 0;
+        for (BitSet bitset : bitSets)
+            size += bitset.size();
+        return size;
+    }
+
+    @Override
+    MultiBitStorage get(int fromIndex, int toIndex) {
+        BitSet[] copyedBitSet = new BitSet[bitSize];
+        for (int i = 0; i < bitSize; i++)
+            copyedBitSet[i] = bitSets[i].get(fromIndex, toIndex);
+        return new PlaneStorage(copyedBitSet);
+    }
+
+    @Override
+    boolean contentEquals(MultiBitStorage other) {
+        if (!(other instanceof PlaneStorage))
+            return super.contentEquals(other);
+        PlaneStorage set = (PlaneStorage) other;
+        if (set.bitSets.length != bitSize)
+            return false;
+        for (int i = 0; i < bitSize; i++)
+            if (!this.bitSets[i].equals(set.bitSets[i]))
+                return false;
+        return true;
+    }
+
+    @Override
+    public int hashCode() {
+        long hs = 0l;
+        for (int i = 0; i < bitSize; i++)
+            hs += bitSets[i].hashCode();
+        return (int) ((hs >> 32) ^ hs);
+    }
+}
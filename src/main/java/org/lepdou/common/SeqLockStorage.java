@@ -0,0 +1,455 @@
+package org.lepdou.common;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 单线程写、多线程读的分页存储。
+ * ============================================================
+ * 与{@link PagedStorage}相同，每 2^16 个索引一页，页内按维存储，
+ * 第p维第w个long在页内的位置是 p * 1024 + w。
+ * 每一页带一个序号（seqlock）：
+ * 写：序号+1（变为奇数）-> 写入long -> 序号+1（变为偶数），
+ *     long和第二次的序号都用lazySet写入，只有第一次的序号是volatile写；
+ * 读：读序号（偶数）-> 读long -> 再读序号，两次相同说明读取期间没有写入，否则重读。
+ * 读只有普通的volatile读，没有CAS和锁，只在与写入重叠时重试。
+ * ------------------------------------------------------------
+ * 同一时刻只能有一个线程写入。
+ */
+class SeqLockStorage extends MultiBitStorage {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int PAGE_SHIFT = PagedStorage.PAGE_SHIFT;
+
+    private static final int PAGE_SIZE = PagedStorage.PAGE_SIZE;
+
+    private static final int PAGE_MASK = PagedStorage.PAGE_MASK;
+
+    private static final int PAGE_WORDS = PagedStorage.PAGE_WORDS;
+
+    private static final AtomicIntegerFieldUpdater<Page> SEQUENCE =
+            AtomicIntegerFieldUpdater.newUpdater(Page.class, "sequence");
+
+    private static final class Page implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        final AtomicLongArray words;
+
+        volatile int sequence;
+
+        Page(int bitSize) {
+            words = new AtomicLongArray(bitSize * PAGE_WORDS);
+        }
+
+        /**
+         * 读取前等待正在进行的写入完成，返回偶数的序号
+         */
+        int beginRead() {
+            int sequence;
+            while (((sequence = this.sequence) & 1) != 0)
+                Thread.yield();
+            return sequence;
+        }
+
+        boolean validate(int sequence) {
+            return this.sequence == sequence;
+        }
+
+        void beginWrite() {
+            sequence = sequence + 1;
+        }
+
+        void endWrite() {
+            SEQUENCE.lazySet(this, sequence + 1);
+        }
+
+        void setWord(int i, long word) {
+            words.lazySet(i, word);
+        }
+    }
+
+    private final int bitSize;
+
+    private volatile Page[] pages;
+
+    SeqLockStorage(int bitSize) {
+        this.bitSize = bitSize;
+        this.pages = new Page[0];
+    }
+
+    @Override
+    MultiBitSet.Layout layout() {
+        return MultiBitSet.Layout.PAGED;
+    }
+
+    private static long base(int pageIndex) {
+        return (long) pageIndex << PAGE_SHIFT;
+    }
+
+    private Page page(Page[] pages, int pageIndex) {
+        return pageIndex < pages.length ? pages[pageIndex] : null;
+    }
+
+    /**
+     * 只由写线程调用，新的页通过pages的volatile写发布
+     */
+    private Page pageForWrite(int pageIndex) {
+        Page[] pages = this.pages;
+        if (pageIndex < pages.length && pages[pageIndex] != null)
+            return pages[pageIndex];
+        if (pageIndex >= pages.length)
+            pages = Arrays.copyOf(pages, Math.max(2 * pages.length, pageIndex + 1));
+        Page page = pages[pageIndex] = new Page(bitSize);
+        this.pages = pages;
+        return page;
+    }
+
+    /**
+     * 页内第w个字中值不为0的位
+     */
+    private long nonZero(Page page, int w) {
+        long word = 0;
+        for (int p = 0; p < bitSize; p++)
+            word |= page.words.get(p * PAGE_WORDS + w);
+        return word;
+    }
+
+    @Override
+    int get(int index) {
+        Page page = page(pages, index >>> PAGE_SHIFT);
+        if (page == null)
+            return 0;
+        int w = (index & PAGE_MASK) >>> 6;
+        while (true) {
+            int sequence = page.beginRead();
+            int value = 0;
+            for (int p = 0; p < bitSize; p++)
+                value |= (int) ((page.words.get(p * PAGE_WORDS + w) >>> index) & 1) << p;
+            if (page.validate(sequence))
+                return value;
+        }
+    }
+
+    @Override
+    void set(int index, int value) {
+        Page page = value == 0 ? page(pages, index >>> PAGE_SHIFT) : pageForWrite(index >>> PAGE_SHIFT);
+        if (page == null)
+            return;
+        int w = (index & PAGE_MASK) >>> 6;
+        long bit = 1L << index;
+        page.beginWrite();
+        for (int p = 0; p < bitSize; p++) {
+            int i = p * PAGE_WORDS + w;
+            long word = page.words.get(i);
+            page.setWord(i, (value & (1 << p)) != 0 ? word | bit : word & ~bit);
+        }
+        page.endWrite();
+    }
+
+    @Override
+    void set(int fromIndex, int toIndex, int value) {
+        if (fromIndex >= toIndex)
+            return;
+        int firstPage = fromIndex >>> PAGE_SHIFT;
+        int lastPage = (toIndex - 1) >>> PAGE_SHIFT;
+        for (int c = firstPage; c <= lastPage; c++) {
+            Page page = value == 0 ? page(pages, c) : pageForWrite(c);
+            if (page == null)
+                continue;
+            int lo = c == firstPage ? fromIndex & PAGE_MASK : 0;
+            int hi = c == lastPage ? ((toIndex - 1) & PAGE_MASK) + 1 : PAGE_SIZE;
+            int first = lo >>> 6;
+            int last = (hi - 1) >>> 6;
+            page.beginWrite();
+            for (int p = 0; p < bitSize; p++) {
+                boolean bit = (value & (1 << p)) != 0;
+                for (int w = first; w <= last; w++) {
+                    long mask = -1L;
+                    if (w == first)
+                        mask &= -1L << lo;
+                    if (w == last)
+                        mask &= -1L >>> -hi;
+                    int i = p * PAGE_WORDS + w;
+                    long word = page.words.get(i);
+                    page.setWord(i, bit ? word | mask : word & ~mask);
+                }
+            }
+            page.endWrite();
+        }
+    }
+
+    @Override
+    int length() {
+        Page[] pages = this.pages;
+        for (int c = pages.length - 1; c >= 0; c--) {
+            Page page = pages[c];
+            if (page == null)
+                continue;
+            int offset;
+            int sequence;
+            do {
+                sequence = page.beginRead();
+                offset = -1;
+                for (int w = PAGE_WORDS - 1; w >= 0 && offset < 0; w--) {
+                    long word = nonZero(page, w);
+                    if (word != 0)
+                        offset = (w << 6) + 64 - Long.numberOfLeadingZeros(word);
+                }
+            } while (!page.validate(sequence));
+            if (offset >= 0)
+                return (int) (base(c) + offset);
+        }
+        return 0;
+    }
+
+    @Override
+    void planeCardinality(long[] counts) {
+        long[] pageCounts = new long[bitSize];
+        for (Page page : pages) {
+            if (page == null)
+                continue;
+            int sequence;
+            do {
+                sequence = page.beginRead();
+                for (int p = 0; p < bitSize; p++) {
+                    long count = 0;
+                    for (int w = 0; w < PAGE_WORDS; w++)
+                        count += Long.bitCount(page.words.get(p * PAGE_WORDS + w));
+                    pageCounts[p] = count;
+                }
+            } while (!page.validate(sequence));
+            for (int p = 0; p < bitSize; p++)
+                counts[p] += pageCounts[p];
+        }
+    }
+
+    /**
+     * 页内从w开始（第一个字只看mask中的位）第一个值不为0（clear为true时为0）的位置，不存在时返回-1
+     */
+    private int nextInPage(Page page, int w, long mask, boolean clear) {
+        while (true) {
+            int sequence = page.beginRead();
+            int offset = -1;
+            for (long m = mask; w < PAGE_WORDS; w++, m = -1L) {
+                long word = nonZero(page, w);
+                word = (clear ? ~word : word) & m;
+                if (word != 0) {
+                    offset = (w << 6) + Long.numberOfTrailingZeros(word);
+                    break;
+                }
+            }
+            if (page.validate(sequence))
+                return offset;
+        }
+    }
+
+    /**
+     * 页内从w往前（第一个字只看mask中的位）第一个值不为0（clear为true时为0）的位置，不存在时返回-1
+     */
+    private int previousInPage(Page page, int w, long mask, boolean clear) {
+        while (true) {
+            int sequence = page.beginRead();
+            int offset = -1;
+            for (long m = mask; w >= 0; w--, m = -1L) {
+                long word = nonZero(page, w);
+                word = (clear ? ~word : word) & m;
+                if (word != 0) {
+                    offset = (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+                    break;
+                }
+            }
+            if (page.validate(sequence))
+                return offset;
+        }
+    }
+
+    @Override
+    int nextSetBit(int fromIndex) {
+        Page[] pages = this.pages;
+        int w = (fromIndex & PAGE_MASK) >>> 6;
+        long mask = -1L << fromIndex;
+        for (int c = fromIndex >>> PAGE_SHIFT; c < pages.length; c++, w = 0, mask = -1L) {
+            Page page = pages[c];
+            if (page == null)
+                continue;
+            int offset = nextInPage(page, w, mask, false);
+            if (offset >= 0)
+                return (int) (base(c) + offset);
+        }
+        return -1;
+    }
+
+    @Override
+    int previousSetBit(int fromIndex) {
+        Page[] pages = this.pages;
+        int c = fromIndex >>> PAGE_SHIFT;
+        int w = (fromIndex & PAGE_MASK) >>> 6;
+        long mask = -1L >>> ~fromIndex;
+        if (c >= pages.length) {
+            c = pages.length - 1;
+            w = PAGE_WORDS - 1;
+            mask = -1L;
+        }
+        for (; c >= 0; c--, w = PAGE_WORDS - 1, mask = -1L) {
+            Page page = pages[c];
+            if (page == null)
+                continue;
+            int offset = previousInPage(page, w, mask, false);
+            if (offset >= 0)
+                return (int) (base(c) + offset);
+        }
+        return -1;
+    }
+
+    @Override
+    int nextClearBit(int fromIndex) {
+        Page[] pages = this.pages;
+        int w = (fromIndex & PAGE_MASK) >>> 6;
+        long mask = -1L << fromIndex;
+        for (int c = fromIndex >>> PAGE_SHIFT; c < pages.length; c++, w = 0, mask = -1L) {
+            Page page = pages[c];
+            if (page == null)
+                return (int) (base(c) + (w << 6) + Long.numberOfTrailingZeros(mask));
+            int offset = nextInPage(page, w, mask, true);
+            if (offset >= 0)
+                return (int) (base(c) + offset);
+        }
+        return (int) Math.max(fromIndex, base(pages.length));
+    }
+
+    @Override
+    int previousClearBit(int fromIndex) {
+        Page[] pages = this.pages;
+        int w = (fromIndex & PAGE_MASK) >>> 6;
+        long mask = -1L >>> ~fromIndex;
+        for (int c = fromIndex >>> PAGE_SHIFT; c >= 0; c--, w = PAGE_WORDS - 1, mask = -1L) {
+            Page page = page(pages, c);
+            if (page == null)
+                return (int) (base(c) + (w << 6) + 63 - Long.numberOfLeadingZeros(mask));
+            int offset = previousInPage(page, w, mask, true);
+            if (offset >= 0)
+                return (int) (base(c) + offset);
+        }
+        return -1;
+    }
+
+    @Override
+    int size() {
+        long size = 0;
+        for (Page page : pages)
+            if (page != null)
+                size += (long) bitSize * PAGE_SIZE;
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 按页在序号校验下读出每一维的long，与{@link PagedStorage#readPlanes}相同，没有分配的页为0
+     */
+    @Override
+    void readPlanes(int fromWord, int n, long[][] planes) {
+        Page[] pages = this.pages;
+        for (int k = 0; k < n; ) {
+            int word = fromWord + k;
+            Page page = page(pages, word >>> 10);
+            int w = word & (PAGE_WORDS - 1);
+            int count = Math.min(n - k, PAGE_WORDS - w);
+            if (page == null) {
+                for (long[] plane : planes)
+                    Arrays.fill(plane, k, k + count, 0);
+            } else {
+                int sequence;
+                do {
+                    sequence = page.beginRead();
+                    for (int p = 0; p < planes.length; p++)
+                        for (int i = 0; i < count; i++)
+                            planes[p][k + i] = page.words.get(p * PAGE_WORDS + w + i);
+                } while (!page.validate(sequence));
+            }
+            k += count;
+        }
+    }
+
+    @Override
+    void readPlane(int plane, int fromWord, int n, long[] words) {
+        Page[] pages = this.pages;
+        for (int k = 0; k < n; ) {
+            int word = fromWord + k;
+            Page page = page(pages, word >>> 10);
+            int w = word & (PAGE_WORDS - 1);
+            int count = Math.min(n - k, PAGE_WORDS - w);
+            if (page == null) {
+                Arrays.fill(words, k, k + count, 0);
+            } else {
+                int sequence;
+                do {
+                    sequence = page.beginRead();
+                    for (int i = 0; i < count; i++)
+                        words[k + i] = page.words.get(plane * PAGE_WORDS + w + i);
+                } while (!page.validate(sequence));
+            }
+            k += count;
+        }
+    }
+
+    /**
+     * 逐页在序号校验下复制，得到只读的{@link PagedStorage}。
+     * 每一页内是一致的，在写线程中调用时是某一时刻的快照；复制所有页，不是O(1)的
+     */
+    @Override
+    MultiBitStorage snapshot() {
+        Page[] pages = this.pages;
+        long[][][] copy = new long[pages.length][][];
+        for (int c = 0; c < pages.length; c++) {
+            Page page = pages[c];
+            if (page == null)
+                continue;
+            long[][] words = new long[bitSize][PAGE_WORDS];
+            int sequence;
+            do {
+                sequence = page.beginRead();
+                for (int p = 0; p < bitSize; p++)
+                    for (int w = 0; w < PAGE_WORDS; w++)
+                        words[p][w] = page.words.get(p * PAGE_WORDS + w);
+            } while (!page.validate(sequence));
+            copy[c] = words;
+        }
+        return PagedStorage.readOnly(bitSize, copy);
+    }
+
+    /**
+     * 复制出的存储是普通的{@link PagedStorage}
+     */
+    @Override
+    MultiBitStorage get(int fromIndex, int toIndex) {
+        PagedStorage storage = new PagedStorage(bitSize);
+        for (int i = nextSetBit(fromIndex); i >= 0 && i < toIndex; i = nextSetBit(i + 1))
+            storage.set(i - fromIndex, get(i));
+        return storage;
+    }
+
+    @Override
+    public int hashCode() {
+        Page[] pages = this.pages;
+        long h = 1234;
+        for (int c = 0; c < pages.length; c++) {
+            Page page = pages[c];
+            if (page == null)
+                continue;
+            long pageHash;
+            int sequence;
+            do {
+                sequence = page.beginRead();
+                pageHash = 0;
+                for (int p = 0; p < bitSize; p++)
+                    for (int w = 0; w < PAGE_WORDS; w++)
+                        pageHash ^= page.words.get(p * PAGE_WORDS + w) * ((((long) c * PAGE_WORDS + w) * bitSize + p) + 1);
+            } while (!page.validate(sequence));
+            h ^= pageHash;
+        }
+        return (int) ((h >> 32) ^ h);
+    }
+}
@@ -0,0 +1,32 @@
+package org.lepdou.common;
+
+/**
+ * 一个线程写、任意多个线程同时读的MultiBitSet，按{@link MultiBitSet.Layout#PAGED}的方式分页存储。
+ * <p/>
+ * 每一页带一个序号（seqlock），读不加锁也不做CAS，只在与写入同一页重叠时重读，
+ * 读到的值不会是新旧bit混合的结果。
+ * 写入方只能有一个线程（例如加载数据的线程），多个线程写入需要外部加锁，
+ * 或者使用{@link ConcurrentMultiBitSet}。
+ * 扫描（nextSetBit等）和cardinality()在每一页内是一致的，跨页不是某一时刻的快照。
+ * 不支持{@link #setGrowable(boolean)}自动扩大bitSize。
+ * {@link #snapshot()}逐页复制出只读的{@link MultiBitSet.Layout#PAGED}集合，不是O(1)的。
+ */
+public class SingleWriterMultiBitSet extends MultiBitSet {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 创建指定维度的单写多读MultiBitSet
+     *
+     * @param bitSize 不能大于32
+     */
+    public SingleWriterMultiBitSet(int bitSize) {
+        super(bitSize, createStorage(bitSize));
+    }
+
+    private static SeqLockStorage createStorage(int bitSize) {
+        if (bitSize <= 0 || bitSize > 32)
+            throw new IllegalArgumentException("bitSize must be in [1,32]:[bitSize=" + bitSize);
+        return new SeqLockStorage(bitSize);
+    }
+}
@@ -0,0 +1,476 @@
+package org.lepdou.common;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * 按索引范围分段加锁的线程安全MultiBitSet，按{@link MultiBitSet.Layout#PLANE}布局存储。
+ * ============================================================
+ * 索引按每 2^10 个一块，块轮流分给各个分段：
+ * stripe = (index / 1024) % stripes
+ * 每个分段有自己的BitSet[]和StampedLock，只保存分给它的块，
+ * 因此不同分段的BitSet（包括扩容和wordsInUse）互不影响。
+ * ------------------------------------------------------------
+ * get先做乐观读，不加锁；期间有写入（或者读到扩容中的BitSet抛出异常）时再加读锁重读。
+ * set(int value, int... indexs)、set(fromIndex, toIndex, value)只锁涉及到的分段，
+ * 总是按分段的顺序加锁，避免死锁。
+ * length()、nextSetBit等需要看到所有值的方法会锁住所有分段。
+ * ------------------------------------------------------------
+ * 分段的存储是私有的，不能直接包装已有的MultiBitSet：
+ * {@link #StripedMultiBitSet(MultiBitSet, int)}复制已有的值，
+ * {@link #get(int, int)}、{@link #toMultiBitSet()}在锁住所有分段时复制出普通的MultiBitSet。
+ * ------------------------------------------------------------
+ * 范围都是[fromIndex, toIndex)。
+ */
+public class StripedMultiBitSet {
+
+    static final int BLOCK_SHIFT = 10;
+
+    private static final int BLOCK_MASK = (1 << BLOCK_SHIFT) - 1;
+
+    private static final int DEFAULT_STRIPES = 16;
+
+    private final int bitSize;
+
+    private final int maxValuePerBit;
+
+    private final int stripeShift;
+
+    private final int stripeMask;
+
+    private final Stripe[] stripes;
+
+    private static final class Stripe {
+
+        final StampedLock lock = new StampedLock();
+
+        final PlaneStorage storage;
+
+        Stripe(int bitSize) {
+            storage = new PlaneStorage(bitSize);
+        }
+    }
+
+    /**
+     * 创建指定维度的StripedMultiBitSet，默认16个分段
+     *
+     * @param bitSize
+     */
+    public StripedMultiBitSet(int bitSize) {
+        this(bitSize, DEFAULT_STRIPES);
+    }
+
+    /**
+     * 创建指定维度和分段数的StripedMultiBitSet
+     *
+     * @param bitSize
+     * @param stripes 分段数，在[1,64]之间，会向上取整为2的幂
+     */
+    public StripedMultiBitSet(int bitSize, int stripes) {
+        if (bitSize <= 0)
+            throw new IllegalArgumentException("bitSize can not be negative:[bitSize=" + bitSize);
+        if (stripes <= 0 || stripes > 64)
+            throw new IllegalArgumentException("stripes must be in [1,64]:[stripes=" + stripes);
+        this.bitSize = bitSize;
+        this.maxValuePerBit = (int) Math.min((1L << bitSize) - 1, Integer.MAX_VALUE);
+        this.stripeShift = 32 - Integer.numberOfLeadingZeros(stripes - 1);
+        this.stripeMask = (1 << stripeShift) - 1;
+        this.stripes = new Stripe[1 << stripeShift];
+        for (int i = 0; i < this.stripes.length; i++)
+            this.stripes[i] = new Stripe(bitSize);
+    }
+
+    /**
+     * 复制set中的值创建StripedMultiBitSet，之后对set的修改不会反映到新的对象中
+     *
+     * @param set
+     * @param stripes 分段数，在[1,64]之间，会向上取整为2的幂
+     */
+    public StripedMultiBitSet(MultiBitSet set, int stripes) {
+        this(set.getBitSize(), stripes);
+        for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+            this.stripes[stripeIndex(i)].storage.set(local(i), set.get(i));
+            if (i == Integer.MAX_VALUE)
+                break;
+        }
+    }
+
+    private int stripeIndex(int index) {
+        return (index >>> BLOCK_SHIFT) & stripeMask;
+    }
+
+    /**
+     * 索引在所属分段中的位置
+     */
+    private int local(int index) {
+        return ((index >>> (BLOCK_SHIFT + stripeShift)) << BLOCK_SHIFT) | (index & BLOCK_MASK);
+    }
+
+    /**
+     * 分段中的位置对应的索引
+     */
+    private long global(int stripeIndex, int local) {
+        long block = ((long) (local >>> BLOCK_SHIFT) << stripeShift) | stripeIndex;
+        return (block << BLOCK_SHIFT) | (local & BLOCK_MASK);
+    }
+
+    /**
+     * 分段中对应索引大于等于index的第一个位置
+     */
+    private int localFrom(int stripeIndex, int index) {
+        int current = stripeIndex(index);
+        if (current == stripeIndex)
+            return local(index);
+        int round = index >>> (BLOCK_SHIFT + stripeShift);
+        return (stripeIndex > current ? round : round + 1) << BLOCK_SHIFT;
+    }
+
+    /**
+     * 分段中对应索引小于等于index的最后一个位置，不存在时返回-1
+     */
+    private int localTo(int stripeIndex, int index) {
+        int current = stripeIndex(index);
+        if (current == stripeIndex)
+            return local(index);
+        int round = index >>> (BLOCK_SHIFT + stripeShift);
+        return ((stripeIndex < current ? round + 1 : round) << BLOCK_SHIFT) - 1;
+    }
+
+    private static void checkIndex(int index) {
+        if (index < 0)
+            throw new IndexOutOfBoundsException("index:" + index);
+    }
+
+    private static void checkIndex(int fromIndex, int toIndex) {
+        if (toIndex < fromIndex || fromIndex < 0)
+            throw new IndexOutOfBoundsException("[" +
+                    "fromIndex,toIndex]=["
+                    + fromIndex + "," + toIndex + "]");
+    }
+
+    private void checkValue(int value) {
+        if (value < 0 || value > maxValuePerBit)
+            throw new IllegalArgumentException("value = " + value);
+    }
+
+    /**
+     * 按分段的顺序给mask中的分段加写锁
+     */
+    private long[] writeLock(long mask) {
+        long[] stamps = new long[stripes.length];
+        for (int s = 0; s < stripes.length; s++)
+            if ((mask & (1L << s)) != 0)
+                stamps[s] = stripes[s].lock.writeLock();
+        return stamps;
+    }
+
+    private void unlockWrite(long mask, long[] stamps) {
+        for (int s = stripes.length - 1; s >= 0; s--)
+            if ((mask & (1L << s)) != 0)
+                stripes[s].lock.unlockWrite(stamps[s]);
+    }
+
+    private long[] readLockAll() {
+        long[] stamps = new long[stripes.length];
+        for (int s = 0; s < stripes.length; s++)
+            stamps[s] = stripes[s].lock.readLock();
+        return stamps;
+    }
+
+    private void unlockReadAll(long[] stamps) {
+        for (int s = stripes.length - 1; s >= 0; s--)
+            stripes[s].lock.unlockRead(stamps[s]);
+    }
+
+    /**
+     * 每个值占用的bit数
+     */
+    public int getBitSize() {
+        return bitSize;
+    }
+
+    /**
+     * 设置第 index位的值。
+     *
+     * @param index
+     * @param value
+     * @throws IllegalArgumentException value的值大于 bitsize能够表示的最大的值
+     */
+    public void set(int index, int value) {
+        checkIndex(index);
+        checkValue(value);
+        Stripe stripe = stripes[stripeIndex(index)];
+        long stamp = stripe.lock.writeLock();
+        try {
+            stripe.storage.set(local(index), value);
+        } finally {
+            stripe.lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * 把所有indexs都设置为value，只锁indexs所在的分段
+     */
+    public void set(int value, int... indexs) {
+        checkValue(value);
+        if (indexs == null || indexs.length == 0)
+            return;
+        long mask = 0;
+        for (int index : indexs) {
+            checkIndex(index);
+            mask |= 1L << stripeIndex(index);
+        }
+        long[] stamps = writeLock(mask);
+        try {
+            for (int index : indexs)
+                stripes[stripeIndex(index)].storage.set(local(index), value);
+        } finally {
+            unlockWrite(mask, stamps);
+        }
+    }
+
+    /**
+     * Sets the bits from the specified {@code fromIndex} (inclusive) to the
+     * specified {@code toIndex} (exclusive) to the specified value.
+     *
+     * @param fromIndex index of the first bit to be set
+     * @param toIndex   index after the last bit to be set
+     * @param value     value to set the selected bits to
+     * @throws IndexOutOfBoundsException if {@code fromIndex} is negative,
+     *                                   or {@code toIndex} is negative, or {@code fromIndex} is
+     *                                   larger than {@code toIndex}
+     */
+    public void set(int fromIndex, int toIndex, int value) {
+        checkIndex(fromIndex, toIndex);
+        checkValue(value);
+        if (fromIndex == toIndex)
+            return;
+        int firstBlock = fromIndex >>> BLOCK_SHIFT;
+        int lastBlock = (toIndex - 1) >>> BLOCK_SHIFT;
+        long mask = 0;
+        for (int block = firstBlock; block <= lastBlock && block - firstBlock < stripes.length; block++)
+            mask |= 1L << (block & stripeMask);
+        long[] stamps = writeLock(mask);
+        try {
+            for (int block = firstBlock; block <= lastBlock; block++) {
+                int from = block == firstBlock ? fromIndex : block << BLOCK_SHIFT;
+                int to = block == lastBlock ? toIndex - 1 : (block << BLOCK_SHIFT) | BLOCK_MASK;
+                stripes[block & stripeMask].storage.set(local(from), local(to) + 1, value);
+            }
+        } finally {
+            unlockWrite(mask, stamps);
+        }
+    }
+
+    /**
+     * Sets the bit specified by the index to {@code false}.
+     *
+     * @param index the index of the bit to be cleared
+     * @throws IndexOutOfBoundsException if the specified index is negative
+     */
+    public void clear(int index) {
+        set(index, 0);
+    }
+
+    public void clear(int fromIndex, int toIndex) {
+        set(fromIndex, toIndex, 0);
+    }
+
+    public void clear(int... indexs) {
+        set(0, indexs);
+    }
+
+    /**
+     * Returns the value with the specified index.
+     * 没有并发写入时不加锁
+     *
+     * @param index the bit index
+     * @return the value with the specified index
+     * @throws IndexOutOfBoundsException if the specified index is negative
+     */
+    public int get(int index) {
+        checkIndex(index);
+        Stripe stripe = stripes[stripeIndex(index)];
+        int local = local(index);
+        long stamp = stripe.lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                int value = stripe.storage.get(local);
+                if (stripe.lock.validate(stamp))
+                    return value;
+            } catch (RuntimeException e) {
+                //读到了扩容中的BitSet，加锁重读
+            }
+        }
+        stamp = stripe.lock.readLock();
+        try {
+            return stripe.storage.get(local);
+        } finally {
+            stripe.lock.unlockRead(stamp);
+        }
+    }
+
+    /**
+     * Returns a new {@code MultiBitSet} composed of values from this set
+     * from {@code fromIndex} (inclusive) to {@code toIndex} (exclusive).
+     * 复制期间锁住所有分段，结果是某一时刻的值
+     *
+     * @param fromIndex index of the first value to include
+     * @param toIndex   index after the last value to include
+     * @return a new {@code MultiBitSet} from a range of this set
+     * @throws IndexOutOfBoundsException if {@code fromIndex} is negative,
+     *                                   or {@code toIndex} is negative, or {@code fromIndex} is
+     *                                   larger than {@code toIndex}
+     */
+    public MultiBitSet get(int fromIndex, int toIndex) {
+        checkIndex(fromIndex, toIndex);
+        MultiBitSet set = new MultiBitSet(bitSize);
+        if (fromIndex == toIndex)
+            return set;
+        long[] stamps = readLockAll();
+        try {
+            for (int s = 0; s < stripes.length; s++) {
+                PlaneStorage storage = stripes[s].storage;
+                int to = localTo(s, toIndex - 1);
+                for (int local = storage.nextSetBit(localFrom(s, fromIndex)); local >= 0 && local <= to;
+                     local = storage.nextSetBit(local + 1))
+                    set.set((int) (global(s, local) - fromIndex), storage.get(local));
+            }
+        } finally {
+            unlockReadAll(stamps);
+        }
+        return set;
+    }
+
+    /**
+     * 复制出包含所有值的{@link MultiBitSet.Layout#PLANE}布局的MultiBitSet
+     */
+    public MultiBitSet toMultiBitSet() {
+        return get(0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * 各维中为1的bit个数的最大值，与{@link MultiBitSet#cardinality()}一致
+     */
+    public int cardinality() {
+        long[] counts = new long[bitSize];
+        long[] stamps = readLockAll();
+        try {
+            for (Stripe stripe : stripes)
+                stripe.storage.planeCardinality(counts);
+        } finally {
+            unlockReadAll(stamps);
+        }
+        long maxCardinality = 0;
+        for (long count : counts)
+            maxCardinality = Math.max(maxCardinality, count);
+        return (int) maxCardinality;
+    }
+
+    /**
+     * 值不为0的最大索引 + 1
+     */
+    public int length() {
+        long length = 0;
+        long[] stamps = readLockAll();
+        try {
+            for (int s = 0; s < stripes.length; s++) {
+                int localLength = stripes[s].storage.length();
+                if (localLength > 0)
+                    length = Math.max(length, global(s, localLength - 1) + 1);
+            }
+        } finally {
+            unlockReadAll(stamps);
+        }
+        return (int) length;
+    }
+
+    /**
+     * 从fromIndex（包含）开始第一个值不为0的索引，不存在时返回-1
+     */
+    public int nextSetBit(int fromIndex) {
+        checkIndex(fromIndex);
+        long next = Long.MAX_VALUE;
+        long[] stamps = readLockAll();
+        try {
+            for (int s = 0; s < stripes.length; s++) {
+                int local = stripes[s].storage.nextSetBit(localFrom(s, fromIndex));
+                if (local >= 0)
+                    next = Math.min(next, global(s, local));
+            }
+        } finally {
+            unlockReadAll(stamps);
+        }
+        return next == Long.MAX_VALUE ? -1 : (int) next;
+    }
+
+    /**
+     * 从fromIndex（包含）开始第一个值为0的索引
+     */
+    public int nextClearBit(int fromIndex) {
+        checkIndex(fromIndex);
+        long next = Long.MAX_VALUE;
+        long[] stamps = readLockAll();
+        try {
+            for (int s = 0; s < stripes.length; s++)
+                next = Math.min(next, global(s, stripes[s].storage.nextClearBit(localFrom(s, fromIndex))));
+        } finally {
+            unlockReadAll(stamps);
+        }
+        return (int) next;
+    }
+
+    /**
+     * 从fromIndex（包含）往前第一个值不为0的索引，不存在时返回-1
+     */
+    public int previousSetBit(int fromIndex) {
+        checkIndex(fromIndex);
+        long previous = -1;
+        long[] stamps = readLockAll();
+        try {
+            for (int s = 0; s < stripes.length; s++) {
+                int to = localTo(s, fromIndex);
+                int local = to < 0 ? -1 : stripes[s].storage.previousSetBit(to);
+                if (local >= 0)
+                    previous = Math.max(previous, global(s, local));
+            }
+        } finally {
+            unlockReadAll(stamps);
+        }
+        return (int) previous;
+    }
+
+    /**
+     * 从fromIndex（包含）往前第一个值为0的索引，不存在时返回-1
+     */
+    public int previousClearBit(int fromIndex) {
+        checkIndex(fromIndex);
+        long previous = -1;
+        long[] stamps = readLockAll();
+        try {
+            for (int s = 0; s < stripes.length; s++) {
+                int to = localTo(s, fromIndex);
+                int local = to < 0 ? -1 : stripes[s].storage.previousClearBit(to);
+                if (local >= 0)
+                    previous = Math.max(previous, global(s, local));
+            }
+        } finally {
+            unlockReadAll(stamps);
+        }
+        return (int) previous;
+    }
+
+    /**
+     * 实际占用的bit数
+     */
+    public int size() {
+        long size = 0;
+        long[] stamps = readLockAll();
+        try {
+            for (Stripe stripe : stripes)
+                size += stripe.storage.size();
+        } finally {
+            unlockReadAll(stamps);
+        }
+        return (int) Math.min(size, Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,167 @@
+import org.lepdou.common.ConcurrentMultiBitSet;
+import org.lepdou.common.MultiBitSet;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class ConcurrentMultiBitSetTest {
+
+    @Test
+    public void testBehavesLikePackedSet() {
+        Random random = new Random(12);
+        MultiBitSet packed = new MultiBitSet(5, MultiBitSet.Layout.PACKED);
+        ConcurrentMultiBitSet concurrent = new ConcurrentMultiBitSet(5);
+        for (int i = 0; i < 5000; i++) {
+            int index = random.nextInt(2) == 0 ? random.nextInt(10000) : 5000000 + random.nextInt(10000);
+            int value = random.nextInt(32);
+            packed.set(index, value);
+            concurrent.set(index, value);
+        }
+        Assert.assertEquals(concurrent.length(), packed.length());
+        Assert.assertEquals(concurrent.cardinality(), packed.cardinality());
+        Assert.assertTrue(concurrent.equal(packed));
+        for (int i = packed.nextSetBit(0); i >= 0; i = packed.nextSetBit(i + 1)) {
+            Assert.assertEquals(concurrent.get(i), packed.get(i));
+            Assert.assertEquals(concurrent.nextSetBit(i), i);
+        }
+        Assert.assertEquals(concurrent.previousSetBit(4000000), packed.previousSetBit(4000000));
+        Assert.assertEquals(concurrent.nextClearBit(5000000), packed.nextClearBit(5000000));
+
+        Assert.assertFalse(concurrent.compareAndSet(20000, 1, 2));
+        Assert.assertTrue(concurrent.compareAndSet(20000, 0, 2));
+        Assert.assertFalse(concurrent.compareAndSet(20000, 34, 3));
+        Assert.assertTrue(concurrent.compareAndSet(20000, 2, 3));
+        Assert.assertEquals(concurrent.get(20000), 3);
+    }
+
+    @Test
+    public void testConcurrentIncrementsOnSharedWords() throws InterruptedException {
+        //12个值挤在同一个long里，每个线程对每个值各加一次
+        final ConcurrentMultiBitSet set = new ConcurrentMultiBitSet(5);
+        final int threads = 8;
+        final int indexes = 24;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread() {
+                public void run() {
+                    for (int round = 0; round < 3; round++)
+                        for (int i = 0; i < indexes; i++) {
+                            int value;
+                            do {
+                                value = set.get(i);
+                            } while (!set.compareAndSet(i, value, value + 1));
+                        }
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        for (int i = 0; i < indexes; i++)
+            Assert.assertEquals(set.get(i), threads * 3);
+    }
+
+    @Test
+    public void testReadersNeverSeeTornValues() throws InterruptedException {
+        final ConcurrentMultiBitSet set = new ConcurrentMultiBitSet(6);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<String> error = new AtomicReference<String>();
+        Thread writer = new Thread() {
+            public void run() {
+                for (int round = 0; round < 200000; round++)
+                    for (int i = 0; i < 20; i++)
+                        set.set(i, (round + i) % 2 == 0 ? 0b101010 : 0b010101);
+                stop.set(true);
+            }
+        };
+        Thread reader = new Thread() {
+            public void run() {
+                while (!stop.get())
+                    for (int i = 0; i < 20; i++) {
+                        int value = set.get(i);
+                        if (value != 0 && value != 0b101010 && value != 0b010101)
+                            error.set("index " + i + " value " + value);
+                    }
+            }
+        };
+        reader.start();
+        writer.start();
+        writer.join();
+        reader.join();
+        Assert.assertNull(error.get());
+    }
+
+    @Test
+    public void testCombineKeepsConcurrentWrites() throws InterruptedException {
+        for (int round = 0; round < 20; round++) {
+            final ConcurrentMultiBitSet set = new ConcurrentMultiBitSet(3);
+            MultiBitSet other = new MultiBitSet(3);
+            set.set(0, 300000, 5);
+            other.set(0, 100000, 6);
+            other.set(200000, 300000, 3);
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            Thread writer = new Thread() {
+                public void run() {
+                    try {
+                        for (int i = 100000; i < 200000; i++)
+                            set.set(i, 7);
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            };
+            writer.start();
+            //other在[100000, 200000)中为0，XOR不修改这些值，writer的写入不能丢失
+            set.xor(other);
+            writer.join();
+            Assert.assertNull(error.get());
+            Assert.assertEquals(set.get(99999), 3);
+            Assert.assertEquals(set.get(200000), 6);
+            Assert.assertEquals(set.get(300000), 0);
+            for (int i = 100000; i < 200000; i++)
+                if (set.get(i) != 7)
+                    Assert.fail("round " + round + " index " + i + " value " + set.get(i));
+            set.and(other);
+            Assert.assertEquals(set.get(99999), 2);
+            Assert.assertEquals(set.nextSetBit(100000), 200000);
+        }
+    }
+
+    @Test
+    public void testFirstWritesIntoNewSegmentAreVisible() throws InterruptedException {
+        //每轮所有线程同时第一次写入同一个新的段（bitSize = 4时每段 2^20 个索引），每个线程写完立即读回
+        final int threads = 8;
+        final ConcurrentMultiBitSet set = new ConcurrentMultiBitSet(4);
+        final AtomicReference<String> error = new AtomicReference<String>();
+        for (int round = 1; round < 2000; round++) {
+            final int base = round << 20;
+            final CyclicBarrier start = new CyclicBarrier(threads);
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final int index = base + t;
+                final int value = t % 15 + 1;
+                workers[t] = new Thread() {
+                    public void run() {
+                        try {
+                            start.await();
+                        } catch (Exception e) {
+                            error.set(e.toString());
+                            return;
+                        }
+                        set.set(index, value);
+                        if (set.get(index) != value)
+                            error.set("index " + index + " value " + set.get(index));
+                    }
+                };
+                workers[t].start();
+            }
+            for (Thread worker : workers)
+                worker.join();
+            Assert.assertNull(error.get(), "round " + round);
+        }
+    }
+}
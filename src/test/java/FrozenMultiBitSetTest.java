@@ -0,0 +1,63 @@
+import org.lepdou.common.FrozenMultiBitSet;
+import org.lepdou.common.MultiBitSet;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+public class FrozenMultiBitSetTest {
+
+    @Test
+    public void testBehavesLikeSource() {
+        Random random = new Random(11);
+        for (int bitSize = 1; bitSize <= 33; bitSize++) {
+            MultiBitSet set = new MultiBitSet(bitSize, MultiBitSet.Layout.PAGED);
+            int maxValue = (int) Math.min((1L << bitSize) - 1, Integer.MAX_VALUE);
+            for (int i = 0; i < 500; i++) {
+                int value = random.nextInt(4) == 0 ? 0 : random.nextInt(maxValue) + 1;
+                set.set(random.nextInt(5000), value);
+            }
+            set.set(4000000 + bitSize, maxValue);
+            FrozenMultiBitSet frozen = set.freeze();
+            Assert.assertEquals(frozen.getBitSize(), bitSize);
+            Assert.assertEquals(frozen.length(), set.length());
+            Assert.assertEquals(frozen.cardinality(), set.cardinality());
+            for (int i = 0; i < 5100; i++) {
+                Assert.assertEquals(frozen.get(i), set.get(i), "bitSize " + bitSize + " index " + i);
+                Assert.assertEquals(frozen.nextSetBit(i), set.nextSetBit(i));
+                Assert.assertEquals(frozen.nextClearBit(i), set.nextClearBit(i));
+                Assert.assertEquals(frozen.previousSetBit(i), set.previousSetBit(i));
+                Assert.assertEquals(frozen.previousClearBit(i), set.previousClearBit(i));
+            }
+            for (int i = 4000000 - 200; i < 4000100; i++)
+                Assert.assertEquals(frozen.get(i), set.get(i), "bitSize " + bitSize + " index " + i);
+        }
+    }
+
+    @Test
+    public void testIndependentOfSource() {
+        MultiBitSet set = new MultiBitSet(3);
+        set.set(7, 5);
+        FrozenMultiBitSet frozen = set.freeze();
+        set.set(7, 2);
+        set.set(100, 1);
+        Assert.assertEquals(frozen.get(7), 5);
+        Assert.assertEquals(frozen.get(100), 0);
+        Assert.assertEquals(frozen.length(), 8);
+        Assert.assertEquals(set.freeze(), set.freeze());
+    }
+
+    @Test
+    public void testValueAtMaxIndex() {
+        MultiBitSet set = new MultiBitSet(1, MultiBitSet.Layout.COMPRESSED);
+        set.set(1000, 1);
+        set.set(Integer.MAX_VALUE, 1);
+        FrozenMultiBitSet frozen = set.freeze();
+        Assert.assertEquals(frozen.get(Integer.MAX_VALUE), 1);
+        Assert.assertEquals(frozen.get(Integer.MAX_VALUE - 1), 0);
+        Assert.assertEquals(frozen.get(1000), 1);
+        Assert.assertEquals(frozen.nextSetBit(1001), Integer.MAX_VALUE);
+        Assert.assertEquals(frozen.previousSetBit(Integer.MAX_VALUE), Integer.MAX_VALUE);
+        Assert.assertEquals(frozen.cardinality(), 2);
+    }
+}
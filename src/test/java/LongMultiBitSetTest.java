@@ -0,0 +1,104 @@
+import org.lepdou.common.LongMultiBitSet;
+import org.lepdou.common.MultiBitSet;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+public class LongMultiBitSetTest {
+
+    private static final long BASE = 6000000000L;
+
+    @Test
+    public void testIndexesBeyondIntRange() {
+        for (MultiBitSet.Layout layout : MultiBitSet.Layout.values()) {
+            LongMultiBitSet set = new LongMultiBitSet(3, layout);
+            set.set(BASE, 5);
+            set.set(BASE + 3, 7);
+            set.set(10, 1);
+            Assert.assertEquals(set.get(BASE), 5);
+            Assert.assertEquals(set.get(BASE + 3), 7);
+            Assert.assertEquals(set.get(BASE + 1), 0);
+            Assert.assertEquals(set.get(LongMultiBitSet.MAX_INDEX), 0);
+            Assert.assertEquals(set.length(), BASE + 4);
+            Assert.assertEquals(set.nextSetBit(11), BASE);
+            Assert.assertEquals(set.nextSetBit(BASE + 1), BASE + 3);
+            Assert.assertEquals(set.nextSetBit(BASE + 4), -1);
+            Assert.assertEquals(set.previousSetBit(BASE - 1), 10);
+            Assert.assertEquals(set.previousSetBit(LongMultiBitSet.MAX_INDEX), BASE + 3);
+            Assert.assertEquals(set.nextClearBit(BASE), BASE + 1);
+            Assert.assertEquals(set.previousClearBit(BASE), BASE - 1);
+            Assert.assertEquals(set.cardinality(), 3);
+        }
+    }
+
+    @Test
+    public void testRangeAcrossChunks() {
+        LongMultiBitSet set = new LongMultiBitSet(2);
+        long from = BASE - 100;
+        long to = BASE + 3 * (1 << 20) + 100;
+        set.set(from, to, 2);
+        Assert.assertEquals(set.get(from - 1), 0);
+        Assert.assertEquals(set.get(from), 2);
+        Assert.assertEquals(set.get(to - 1), 2);
+        Assert.assertEquals(set.get(to), 0);
+        Assert.assertEquals(set.nextClearBit(from), to);
+        Assert.assertEquals(set.previousClearBit(to - 1), from - 1);
+        Assert.assertEquals(set.cardinality(), to - from);
+        set.clear(from + 1, to - 1);
+        Assert.assertEquals(set.nextSetBit(from + 1), to - 1);
+        LongMultiBitSet sub = set.get(from, to);
+        Assert.assertEquals(sub.get(0), 2);
+        Assert.assertEquals(sub.length(), to - from);
+    }
+
+    @Test
+    public void testInvalidValueAllocatesNoChunk() {
+        LongMultiBitSet set = new LongMultiBitSet(3);
+        try {
+            set.set(5000000000L, 99);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+        }
+        try {
+            set.set(5000000000L, 5000000010L, 8);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+        }
+        Assert.assertEquals(set.size(), 0);
+        Assert.assertEquals(set.length(), 0);
+    }
+
+    @Test
+    public void testIndexBeyondMaxIndex() {
+        LongMultiBitSet set = new LongMultiBitSet(4);
+        set.set(LongMultiBitSet.MAX_INDEX - 1, LongMultiBitSet.MAX_INDEX + 1, 3);
+        set.set(LongMultiBitSet.MAX_INDEX, 5);
+        Assert.assertEquals(set.get(LongMultiBitSet.MAX_INDEX - 1), 3);
+        Assert.assertEquals(set.get(LongMultiBitSet.MAX_INDEX), 5);
+        Assert.assertEquals(set.length(), LongMultiBitSet.MAX_INDEX + 1);
+        long[] indexes = {LongMultiBitSet.MAX_INDEX + 1, 1L << 51, 1L << 52, Long.MAX_VALUE};
+        for (long index : indexes) {
+            try {
+                set.set(index, 5);
+                Assert.fail();
+            } catch (IndexOutOfBoundsException e) {
+            }
+            try {
+                set.get(index);
+                Assert.fail();
+            } catch (IndexOutOfBoundsException e) {
+            }
+            try {
+                set.set(0, index + 1, 1);
+                Assert.fail();
+            } catch (IndexOutOfBoundsException e) {
+            }
+        }
+        Assert.assertEquals(set.get(0), 0);
+        Assert.assertEquals(set.nextSetBit(0), LongMultiBitSet.MAX_INDEX - 1);
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testPackedBitSizeTooLarge() {
+        new LongMultiBitSet(33, MultiBitSet.Layout.PACKED);
+    }
+}
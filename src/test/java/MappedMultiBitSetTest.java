@@ -0,0 +1,90 @@
+import org.lepdou.common.MappedMultiBitSet;
+import org.lepdou.common.MultiBitSet;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.File;
+import java.util.Random;
+
+public class MappedMultiBitSetTest {
+
+    @Test
+    public void testOpenWrittenFile() throws Exception {
+        Random random = new Random(4);
+        MultiBitSet multiBitSet = new MultiBitSet(5);
+        for (int i = 0; i < 10000; i++)
+            multiBitSet.set(random.nextInt(100000), random.nextInt(32));
+        File file = File.createTempFile("multibitset", ".mbs");
+        file.deleteOnExit();
+        multiBitSet.writeMappedFile(file.getPath());
+
+        MappedMultiBitSet mapped = MappedMultiBitSet.open(file.getPath());
+        try {
+            Assert.assertEquals(mapped.getLayout(), MultiBitSet.Layout.PACKED);
+            Assert.assertEquals(mapped.length(), multiBitSet.length());
+            Assert.assertEquals(mapped.cardinality(), multiBitSet.cardinality());
+            Assert.assertTrue(mapped.equal(multiBitSet));
+            for (int i = 0; i < 100100; i++)
+                Assert.assertEquals(mapped.get(i), multiBitSet.get(i));
+            Assert.assertEquals(mapped.nextClearBit(0), multiBitSet.nextClearBit(0));
+            Assert.assertEquals(mapped.previousSetBit(200000), multiBitSet.previousSetBit(200000));
+        } finally {
+            mapped.close();
+        }
+    }
+
+    @Test
+    public void testWritableUpdatesInPlace() throws Exception {
+        Random random = new Random(5);
+        File file = File.createTempFile("multibitset", ".mbs");
+        file.deleteOnExit();
+        MultiBitSet expected = new MultiBitSet(3);
+        MappedMultiBitSet mapped = MappedMultiBitSet.create(file.getPath(), 3);
+        try {
+            for (int i = 0; i < 20000; i++) {
+                int index = random.nextInt(300000);
+                int value = random.nextInt(8);
+                expected.set(index, value);
+                mapped.set(index, value);
+            }
+            mapped.force();
+        } finally {
+            mapped.close();
+        }
+
+        mapped = MappedMultiBitSet.open(file.getPath(), true);
+        try {
+            Assert.assertTrue(mapped.equal(expected));
+            mapped.clear(expected.nextSetBit(0));
+            expected.clear(expected.nextSetBit(0));
+            mapped.set(1000000, 5);
+            expected.set(1000000, 5);
+            mapped.force();
+        } finally {
+            mapped.close();
+        }
+
+        mapped = MappedMultiBitSet.open(file.getPath());
+        try {
+            Assert.assertEquals(mapped.length(), expected.length());
+            Assert.assertTrue(mapped.equal(expected));
+        } finally {
+            mapped.close();
+        }
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testReadOnly() throws Exception {
+        MultiBitSet multiBitSet = new MultiBitSet(2, MultiBitSet.Layout.PACKED);
+        multiBitSet.set(7, 3);
+        File file = File.createTempFile("multibitset", ".mbs");
+        file.deleteOnExit();
+        multiBitSet.writeMappedFile(file.getPath());
+        MappedMultiBitSet mapped = MappedMultiBitSet.open(file.getPath());
+        try {
+            mapped.set(7, 1);
+        } finally {
+            mapped.close();
+        }
+    }
+}
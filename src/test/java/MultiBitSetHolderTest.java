@@ -0,0 +1,93 @@
+import org.lepdou.common.MultiBitSet;
+import org.lepdou.common.MultiBitSetHolder;
+import org.lepdou.common.OffHeapMultiBitSet;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+public class MultiBitSetHolderTest {
+
+    private static OffHeapMultiBitSet generation(int value) {
+        OffHeapMultiBitSet set = new OffHeapMultiBitSet(4);
+        for (int i = 0; i < 1000; i++)
+            set.set(i, value);
+        return set;
+    }
+
+    @Test
+    public void testReadersSeeOneGenerationAndOldOnesAreClosed() throws Exception {
+        final MultiBitSetHolder holder = new MultiBitSetHolder(generation(1));
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread() {
+                public void run() {
+                    try {
+                        while (!stop.get()) {
+                            holder.read(new Function<MultiBitSet, Void>() {
+                                public Void apply(MultiBitSet set) {
+                                    //同一次读取中的所有值来自同一代，且不会读到已关闭的堆外内存
+                                    int value = set.get(0);
+                                    for (int i = 1; i < 1000; i++)
+                                        if (set.get(i) != value)
+                                            throw new AssertionError("mixed generations at " + i);
+                                    return null;
+                                }
+                            });
+                            holder.get(999);
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        OffHeapMultiBitSet last = null;
+        try {
+            for (int g = 2; g < 200; g++) {
+                final OffHeapMultiBitSet next = generation(g % 15 + 1);
+                holder.reloadAsync(new Callable<MultiBitSet>() {
+                    public MultiBitSet call() {
+                        return next;
+                    }
+                }, executor).get();
+                last = next;
+            }
+        } finally {
+            stop.set(true);
+            for (Thread reader : readers)
+                reader.join();
+            executor.shutdown();
+        }
+        Assert.assertNull(error.get());
+        Assert.assertEquals(holder.get(10), 199 % 15 + 1);
+        Assert.assertEquals(last.get(10), 199 % 15 + 1);
+    }
+
+    @Test
+    public void testFailedLoadKeepsCurrentGeneration() {
+        MultiBitSet set = new MultiBitSet(2);
+        set.set(3, 2);
+        MultiBitSetHolder holder = new MultiBitSetHolder(set);
+        try {
+            holder.reload(new Callable<MultiBitSet>() {
+                public MultiBitSet call() throws Exception {
+                    throw new java.io.IOException("broken file");
+                }
+            });
+            Assert.fail();
+        } catch (Exception e) {
+            Assert.assertEquals(e.getMessage(), "broken file");
+        }
+        Assert.assertEquals(holder.get(3), 2);
+    }
+}
@@ -0,0 +1,294 @@
+import org.lepdou.common.ConcurrentMultiBitSet;
+import org.lepdou.common.MultiBitSet;
+import org.lepdou.common.SingleWriterMultiBitSet;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.IntConsumer;
+
+public class MultiBitSetQueryTest {
+
+    private static MultiBitSet[] randomSets(int bitSize, int bound, long seed) {
+        Random random = new Random(seed);
+        MultiBitSet[] sets = new MultiBitSet[MultiBitSet.Layout.values().length];
+        for (int l = 0; l < sets.length; l++)
+            sets[l] = new MultiBitSet(bitSize, MultiBitSet.Layout.values()[l]);
+        for (int i = 0; i < bound / 3; i++) {
+            int index = random.nextInt(bound);
+            int value = random.nextInt(1 << bitSize);
+            for (MultiBitSet set : sets)
+                set.set(index, value);
+        }
+        for (MultiBitSet set : sets)
+            set.set(bound / 2, bound / 2 + 5000, 1);
+        return sets;
+    }
+
+    @Test
+    public void testHistogram() {
+        for (MultiBitSet set : randomSets(3, 200000, 20)) {
+            long[] expected = new long[8];
+            for (int i = 1000; i < 150001; i++)
+                expected[set.get(i)]++;
+            Assert.assertEquals(set.histogram(1000, 150001), expected, set.getLayout().toString());
+
+            long[] all = set.histogram();
+            long total = 0;
+            for (long count : all)
+                total += count;
+            Assert.assertEquals(total, set.length());
+            Assert.assertEquals(set.histogram(0, set.length() + 100)[0], all[0] + 100);
+        }
+    }
+
+    @Test
+    public void testIndexOfValue() {
+        for (MultiBitSet set : randomSets(4, 100000, 21)) {
+            int length = set.length();
+            for (int value : new int[]{0, 1, 9, 15}) {
+                int next = -1;
+                for (int i = length + 10; i >= 0; i--) {
+                    if (set.get(i) == value && (value == 0 || i < length))
+                        next = i;
+                    if (i % 97 == 0 || value != 0 && next == i)
+                        Assert.assertEquals(set.nextIndexOf(value, i), next, set.getLayout() + " value " + value + " from " + i);
+                }
+                int previous = -1;
+                for (int i = 0; i < length + 10; i++) {
+                    if (set.get(i) == value)
+                        previous = i;
+                    if (i % 97 == 0 || previous == i)
+                        Assert.assertEquals(set.previousIndexOf(value, i), previous, set.getLayout() + " value " + value + " from " + i);
+                }
+                final List<Integer> found = new ArrayList<Integer>();
+                set.forEachIndexWithValue(value, new IntConsumer() {
+                    public void accept(int index) {
+                        found.add(index);
+                    }
+                });
+                List<Integer> expected = new ArrayList<Integer>();
+                for (int i = 0; i < length; i++)
+                    if (set.get(i) == value)
+                        expected.add(i);
+                Assert.assertEquals(found, expected);
+            }
+            Assert.assertEquals(set.nextIndexOf(16, 0), -1);
+        }
+    }
+
+    @Test
+    public void testIndicesWhereValueIn() {
+        Random random = new Random(22);
+        BitSet mask = new BitSet();
+        for (int i = 0; i < 60000; i++)
+            mask.set(random.nextInt(120000));
+        for (MultiBitSet set : randomSets(3, 100000, 23)) {
+            BitSet expected = new BitSet();
+            for (int i = 0; i < set.length(); i++)
+                if (set.get(i) == 2 || set.get(i) == 5)
+                    expected.set(i);
+            Assert.assertEquals(set.indicesWhereValueIn(5, 2, 2, 9), expected, set.getLayout().toString());
+
+            expected.clear();
+            for (int i = 3000; i < 110000; i++)
+                if ((set.get(i) == 0 || set.get(i) == 1) && mask.get(i))
+                    expected.set(i);
+            Assert.assertEquals(set.indicesWhereValueIn(3000, 110000, mask, 0, 1), expected, set.getLayout().toString());
+            Assert.assertTrue(set.indicesWhereValueIn().isEmpty());
+        }
+    }
+
+    @Test
+    public void testRangePredicates() {
+        Random random = new Random(24);
+        BitSet filter = new BitSet();
+        for (int i = 0; i < 50000; i++)
+            filter.set(random.nextInt(130000));
+        for (MultiBitSet set : randomSets(5, 100000, 25)) {
+            int length = set.length();
+            for (int k : new int[]{Integer.MIN_VALUE, -1, 0, 1, 7, 16, 31, 32, Integer.MAX_VALUE}) {
+                BitSet less = new BitSet();
+                BitSet greater = new BitSet();
+                BitSet lessFiltered = new BitSet();
+                for (int i = 0; i < length; i++) {
+                    if (set.get(i) < k)
+                        less.set(i);
+                    if (set.get(i) > k)
+                        greater.set(i);
+                }
+                for (int i = filter.nextSetBit(0); i >= 0; i = filter.nextSetBit(i + 1))
+                    if (set.get(i) < k)
+                        lessFiltered.set(i);
+                Assert.assertEquals(set.lessThan(k), less, set.getLayout() + " < " + k);
+                Assert.assertEquals(set.greaterThan(k), greater, set.getLayout() + " > " + k);
+                Assert.assertEquals(set.lessThan(k, filter), lessFiltered, set.getLayout() + " < " + k);
+            }
+            for (int[] bounds : new int[][]{{3, 9}, {0, 31}, {10, 10}, {12, 4}, {20, 100}}) {
+                BitSet expected = new BitSet();
+                for (int i = 0; i < length; i++)
+                    if (set.get(i) >= bounds[0] && set.get(i) <= bounds[1])
+                        expected.set(i);
+                Assert.assertEquals(set.between(bounds[0], bounds[1]), expected,
+                        set.getLayout() + " between " + bounds[0] + "," + bounds[1]);
+            }
+        }
+    }
+
+    @Test
+    public void testAggregates() {
+        Random random = new Random(26);
+        BitSet filter = new BitSet();
+        for (int i = 0; i < 20000; i++)
+            filter.set(random.nextInt(100000));
+        for (MultiBitSet set : randomSets(6, 120000, 27)) {
+            String layout = set.getLayout().toString();
+            long sum = 0;
+            int min = Integer.MAX_VALUE;
+            int max = -1;
+            for (int i = 1000; i < 100000; i++) {
+                int value = set.get(i);
+                sum += value;
+                min = Math.min(min, value);
+                max = Math.max(max, value);
+            }
+            Assert.assertEquals(set.sum(1000, 100000), sum, layout);
+            Assert.assertEquals(set.min(1000, 100000), min, layout);
+            Assert.assertEquals(set.max(1000, 100000), max, layout);
+            Assert.assertEquals(set.avg(1000, 100000), (double) sum / 99000, 1e-9, layout);
+
+            long filteredSum = 0;
+            int filteredMin = Integer.MAX_VALUE;
+            int filteredMax = -1;
+            for (int i = filter.nextSetBit(0); i >= 0; i = filter.nextSetBit(i + 1)) {
+                filteredSum += set.get(i);
+                filteredMin = Math.min(filteredMin, set.get(i));
+                filteredMax = Math.max(filteredMax, set.get(i));
+            }
+            Assert.assertEquals(set.sum(filter), filteredSum, layout);
+            Assert.assertEquals(set.min(filter), filteredMin, layout);
+            Assert.assertEquals(set.max(filter), filteredMax, layout);
+            Assert.assertEquals(set.avg(filter), (double) filteredSum / filter.cardinality(), 1e-9, layout);
+
+            //只有一段值为1的索引时最小值不是0
+            int from = 60000;
+            Assert.assertEquals(set.min(from, from + 5000), 1, layout);
+            Assert.assertEquals(set.max(from, from + 5000), 1, layout);
+            Assert.assertEquals(set.sum(from, from + 5000), 5000, layout);
+            Assert.assertEquals(set.min(from, from), -1, layout);
+            Assert.assertEquals(set.min(set.length() - 1, set.length() + 10), 0, layout);
+            Assert.assertEquals(set.max(new BitSet()), -1, layout);
+            Assert.assertTrue(Double.isNaN(set.avg(new BitSet())), layout);
+        }
+        MultiBitSet wide = new MultiBitSet(32);
+        wide.set(10, Integer.MAX_VALUE);
+        wide.set(20, Integer.MAX_VALUE);
+        Assert.assertEquals(wide.sum(), 2L * Integer.MAX_VALUE);
+        Assert.assertEquals(wide.max(), Integer.MAX_VALUE);
+        Assert.assertEquals(wide.min(10, 21), 0);
+        Assert.assertEquals(wide.min(new BitSet() {{ set(10); set(20); }}), Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void testRankQueries() {
+        for (MultiBitSet set : randomSets(4, 50000, 28)) {
+            String layout = set.getLayout().toString();
+            final int length = set.length();
+            final int[] values = new int[length];
+            Integer[] order = new Integer[length];
+            for (int i = 0; i < length; i++) {
+                values[i] = set.get(i);
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                public int compare(Integer a, Integer b) {
+                    return values[a] != values[b] ? values[a] - values[b] : a - b;
+                }
+            });
+            for (int k : new int[]{0, 1, 100, 5000, 30000, length, length + 10}) {
+                BitSet bottom = new BitSet();
+                for (int i = 0; i < Math.min(k, length); i++)
+                    bottom.set(order[i]);
+                Assert.assertEquals(set.bottomK(k), bottom, layout + " bottom " + k);
+
+                BitSet top = new BitSet();
+                int taken = 0;
+                //值从大到小，同值时索引从小到大
+                for (int end = length; end > 0 && taken < k; ) {
+                    int start = end;
+                    while (start > 0 && values[order[start - 1]] == values[order[end - 1]])
+                        start--;
+                    for (int i = start; i < end && taken < k; i++, taken++)
+                        top.set(order[i]);
+                    end = start;
+                }
+                Assert.assertEquals(set.topK(k), top, layout + " top " + k);
+            }
+            for (double q : new double[]{0, 0.01, 0.5, 0.9, 0.99, 1}) {
+                int rank = (int) Math.max(1, Math.ceil(q * length)) - 1;
+                Assert.assertEquals(set.quantile(q), values[order[rank]], layout + " q " + q);
+            }
+        }
+        Assert.assertEquals(new MultiBitSet(3).quantile(0.5), -1);
+        Assert.assertTrue(new MultiBitSet(3).topK(5).isEmpty());
+    }
+
+    @Test
+    public void testRankQueriesOnSingleWriterAndConcurrentSets() {
+        MultiBitSet plane = randomSets(5, 70000, 29)[0];
+        MultiBitSet[] sets = {new SingleWriterMultiBitSet(5), new ConcurrentMultiBitSet(5)};
+        for (MultiBitSet set : sets) {
+            for (int i = plane.nextSetBit(0); i >= 0; i = plane.nextSetBit(i + 1))
+                set.set(i, plane.get(i));
+            for (double q : new double[]{0, 0.3, 0.5, 0.97, 1})
+                Assert.assertEquals(set.quantile(q), plane.quantile(q), set.getClass().getSimpleName() + " q " + q);
+            Assert.assertEquals(set.topK(1000), plane.topK(1000));
+            Assert.assertEquals(set.bottomK(1000), plane.bottomK(1000));
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testQuantileOutOfRange() {
+        new MultiBitSet(3).quantile(1.5);
+    }
+
+    @Test
+    public void testCompressedContainersReadPlanes() {
+        Random random = new Random(31);
+        MultiBitSet compressed = new MultiBitSet(5, MultiBitSet.Layout.COMPRESSED);
+        MultiBitSet plane = new MultiBitSet(5);
+        //第0块稀疏，第1块稠密，第2块是整块的一段，第3块是几段
+        for (int i = 0; i < 300; i++) {
+            int index = random.nextInt(65536);
+            int value = random.nextInt(32);
+            compressed.set(index, value);
+            plane.set(index, value);
+        }
+        for (int i = 65536; i < 131072; i++) {
+            int value = random.nextInt(32);
+            compressed.set(i, value);
+            plane.set(i, value);
+        }
+        compressed.set(131072, 196608, 21);
+        plane.set(131072, 196608, 21);
+        for (int[] run : new int[][]{{196700, 196701, 3}, {197000, 199000, 30}, {199000, 199130, 7}, {250000, 262000, 16}}) {
+            compressed.set(run[0], run[1], run[2]);
+            plane.set(run[0], run[1], run[2]);
+        }
+        compressed.optimize();
+        Assert.assertEquals(compressed.histogram(), plane.histogram());
+        Assert.assertEquals(compressed.histogram(70, 262100), plane.histogram(70, 262100));
+        Assert.assertEquals(compressed.between(5, 22), plane.between(5, 22));
+        Assert.assertEquals(compressed.indicesWhereValueIn(7, 21), plane.indicesWhereValueIn(7, 21));
+        Assert.assertEquals(compressed.sum(100, 260000), plane.sum(100, 260000));
+        Assert.assertEquals(compressed.max(196600, 199000), plane.max(196600, 199000));
+        Assert.assertEquals(compressed.quantile(0.3), plane.quantile(0.3));
+        for (int value : new int[]{3, 7, 16, 30})
+            Assert.assertEquals(compressed.nextIndexOf(value, 131072), plane.nextIndexOf(value, 131072));
+    }
+}
@@ -1,6 +1,14 @@
+import org.lepdou.common.ConcurrentMultiBitSet;
 import org.lepdou.common.MultiBitSet;
+import org.testng.Assert;
 import org.testng.annotations.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
 
 /**
  * Created by lepdou on 15/3/26.
@@ -20,7 +28,471 @@ public class MultiBitSetTest {
         System.out.print("");
     }
 
+    @Test
+    public void testPackedLayoutBehavesLikePlaneLayout() {
+        assertBehavesLikePlaneLayout(MultiBitSet.Layout.PACKED, 5000);
+    }
+
+    @Test
+    public void testCompressedLayoutBehavesLikePlaneLayout() {
+        //跨越多个块，块内既有稀疏也有稠密的值
+        assertBehavesLikePlaneLayout(MultiBitSet.Layout.COMPRESSED, 5000);
+        assertBehavesLikePlaneLayout(MultiBitSet.Layout.COMPRESSED, 200000);
+    }
+
+    @Test
+    public void testPagedLayoutBehavesLikePlaneLayout() {
+        assertBehavesLikePlaneLayout(MultiBitSet.Layout.PAGED, 5000);
+        assertBehavesLikePlaneLayout(MultiBitSet.Layout.PAGED, 300000);
+    }
+
+    @Test
+    public void testPagedLayoutAllocatesOnlyWrittenPages() {
+        MultiBitSet paged = new MultiBitSet(3, MultiBitSet.Layout.PAGED);
+        paged.set(Integer.MAX_VALUE - 1, 5);
+        paged.set(10, 0);
+        Assert.assertEquals(paged.size(), 3 * 65536);
+        Assert.assertEquals(paged.get(Integer.MAX_VALUE - 1), 5);
+        Assert.assertEquals(paged.nextSetBit(0), Integer.MAX_VALUE - 1);
+        Assert.assertEquals(paged.nextClearBit(0), 0);
+        Assert.assertEquals(paged.length(), Integer.MAX_VALUE);
+
+        paged.set(1 << 20, 2);
+        Assert.assertEquals(paged.size(), 2 * 3 * 65536);
+        paged.clear(1 << 20, (1 << 20) + 70000);
+        Assert.assertEquals(paged.size(), 3 * 65536);
+        Assert.assertEquals(paged.nextSetBit(0), Integer.MAX_VALUE - 1);
+    }
+
+    @Test
+    public void testSnapshotIsolatesLaterWrites() {
+        Random random = new Random(15);
+        MultiBitSet live = new MultiBitSet(3, MultiBitSet.Layout.PAGED);
+        live.setGrowable(true);
+        for (int i = 0; i < 5000; i++)
+            live.set(random.nextInt(300000), random.nextInt(8));
+        MultiBitSet expected = live.get(0, live.length());
+        MultiBitSet snapshot = live.snapshot();
+
+        live.set(7, 5);
+        live.clear(65536, 65536 * 2);
+        live.set(1000000, 3);
+        MultiBitSet second = live.snapshot();
+        live.set(1000000, 100);
+        live.set(8, 6);
+
+        Assert.assertTrue(snapshot.equal(expected));
+        Assert.assertEquals(snapshot.getBitSize(), 3);
+        Assert.assertEquals(second.get(7), 5);
+        Assert.assertEquals(second.get(8), expected.get(8));
+        Assert.assertEquals(second.get(1000000), 3);
+        Assert.assertEquals(second.nextSetBit(65536), live.nextSetBit(65536));
+        Assert.assertEquals(live.get(1000000), 100);
+        Assert.assertEquals(live.getBitSize(), 7);
+        Assert.assertEquals(live.get(7), 5);
+        Assert.assertEquals(live.get(8), 6);
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testSnapshotIsReadOnly() {
+        MultiBitSet live = new MultiBitSet(3, MultiBitSet.Layout.PAGED);
+        live.set(1, 1);
+        live.snapshot().set(1, 2);
+    }
+
+    @Test
+    public void testEveryWriteOnSnapshotThrows() {
+        MultiBitSet live = new MultiBitSet(3, MultiBitSet.Layout.PAGED);
+        live.set(1, 1);
+        final MultiBitSet snapshot = live.snapshot();
+        final MultiBitSet other = new MultiBitSet(3, MultiBitSet.Layout.PAGED);
+        Runnable[] writes = {
+                new Runnable() {
+                    public void run() {
+                        snapshot.set(200000, 0);
+                    }
+                },
+                new Runnable() {
+                    public void run() {
+                        snapshot.set(1, 0);
+                    }
+                },
+                new Runnable() {
+                    public void run() {
+                        snapshot.clear(200000);
+                    }
+                },
+                new Runnable() {
+                    public void run() {
+                        snapshot.set(200000, 300000, 0);
+                    }
+                },
+                new Runnable() {
+                    public void run() {
+                        snapshot.clear(0, 100);
+                    }
+                },
+                new Runnable() {
+                    public void run() {
+                        snapshot.setAll(200000, new int[]{0, 0});
+                    }
+                },
+                new Runnable() {
+                    public void run() {
+                        snapshot.or(other);
+                    }
+                },
+                new Runnable() {
+                    public void run() {
+                        snapshot.and(snapshot);
+                    }
+                }
+        };
+        for (int i = 0; i < writes.length; i++) {
+            try {
+                writes[i].run();
+                Assert.fail("write " + i);
+            } catch (UnsupportedOperationException e) {
+            }
+        }
+        Assert.assertEquals(snapshot.get(1), 1);
+    }
+
+    @Test(expectedExceptions = UnsupportedOperationException.class)
+    public void testSnapshotRequiresPagedLayout() {
+        new MultiBitSet(3).snapshot();
+    }
+
+    @Test
+    public void testBulkLoadMatchesSingleSets() {
+        Random random = new Random(18);
+        for (MultiBitSet.Layout layout : MultiBitSet.Layout.values()) {
+            for (int bitSize : new int[]{1, 5, 13, 31}) {
+                int[] values = new int[70000 + random.nextInt(1000)];
+                for (int i = 0; i < values.length; i++)
+                    values[i] = random.nextInt(3) == 0 ? 0 : random.nextInt() >>> (32 - bitSize);
+                MultiBitSet expected = new MultiBitSet(bitSize, layout);
+                for (int i = 0; i < values.length; i++)
+                    expected.set(i, values[i]);
+                MultiBitSet loaded = MultiBitSet.fromValues(values, bitSize, layout);
+                Assert.assertTrue(loaded.equal(expected), layout + " bitSize " + bitSize);
+
+                //写入已有数据的中间，两端不对齐
+                int offset = 1000 + random.nextInt(100);
+                int[] patch = java.util.Arrays.copyOf(values, 3000 + random.nextInt(100));
+                loaded.setAll(offset, patch);
+                for (int i = 0; i < patch.length; i++)
+                    expected.set(offset + i, patch[i]);
+                Assert.assertTrue(loaded.equal(expected), layout + " bitSize " + bitSize);
+                Assert.assertEquals(loaded.get(offset - 1), values[offset - 1]);
+                Assert.assertEquals(loaded.get(offset + patch.length), values[offset + patch.length]);
+
+                //远处写入少量的值
+                int far = 5000000 + random.nextInt(100);
+                int[] small = java.util.Arrays.copyOf(values, 100);
+                loaded.setAll(far, small);
+                for (int i = 0; i < small.length; i++)
+                    expected.set(far + i, small[i]);
+                Assert.assertTrue(loaded.equal(expected), layout + " bitSize " + bitSize);
+
+                //连续的最大值，每一维都是整个为1的long
+                int[] run = new int[1000];
+                java.util.Arrays.fill(run, (int) ((1L << bitSize) - 1));
+                run[500] = 0;
+                loaded.setAll(offset + 37, run);
+                for (int i = 0; i < run.length; i++)
+                    expected.set(offset + 37 + i, run[i]);
+                Assert.assertTrue(loaded.equal(expected), layout + " bitSize " + bitSize);
+            }
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testBulkLoadRejectsOutOfRangeValues() {
+        MultiBitSet.fromValues(new int[]{1, 2, 8}, 3);
+    }
+
+    @Test
+    public void testGetAllMatchesGet() {
+        Random random = new Random(17);
+        for (MultiBitSet.Layout layout : MultiBitSet.Layout.values()) {
+            MultiBitSet set = new MultiBitSet(8, layout);
+            for (int i = 0; i < 20000; i++)
+                set.set(random.nextInt(1000000), random.nextInt(256));
+            int[] indexes = new int[50000];
+            for (int i = 0; i < indexes.length; i++)
+                indexes[i] = random.nextInt(1100000);
+            int[] ints = new int[indexes.length];
+            short[] shorts = new short[indexes.length];
+            byte[] bytes = new byte[indexes.length];
+            set.getAll(indexes, ints);
+            set.getAll(indexes, shorts);
+            set.getAll(indexes, bytes);
+            for (int i = 0; i < indexes.length; i++) {
+                int expected = set.get(indexes[i]);
+                Assert.assertEquals(ints[i], expected, layout + " index " + indexes[i]);
+                Assert.assertEquals(shorts[i], expected);
+                Assert.assertEquals(bytes[i] & 0xFF, expected);
+            }
+            java.util.Arrays.sort(indexes);
+            set.getAll(indexes, ints);
+            for (int i = 0; i < indexes.length; i++)
+                Assert.assertEquals(ints[i], set.get(indexes[i]));
+        }
+    }
+
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testGetAllRejectsNarrowOutput() {
+        new MultiBitSet(9).getAll(new int[]{1}, new byte[1]);
+    }
+
+    private void assertBehavesLikePlaneLayout(MultiBitSet.Layout layout, int bound) {
+        Random random = new Random(26);
+        for (int bitSize : new int[]{1, 3, 4, 7, 13}) {
+            MultiBitSet plane = new MultiBitSet(bitSize);
+            MultiBitSet packed = new MultiBitSet(bitSize, layout);
+            for (int i = 0; i < 2000; i++) {
+                int index = random.nextInt(bound);
+                int value = random.nextInt(4) == 0 ? 0 : random.nextInt(1 << bitSize);
+                plane.set(index, value);
+                packed.set(index, value);
+                if (i == 1000)
+                    packed.optimize();
+            }
+            Assert.assertEquals(packed.length(), plane.length());
+            Assert.assertEquals(packed.cardinality(), plane.cardinality());
+            Assert.assertTrue(packed.equal(plane));
+            for (int i = 0; i < bound + 100; i++) {
+                Assert.assertEquals(packed.get(i), plane.get(i));
+                Assert.assertEquals(packed.nextSetBit(i), plane.nextSetBit(i));
+                Assert.assertEquals(packed.nextClearBit(i), plane.nextClearBit(i));
+                Assert.assertEquals(packed.previousSetBit(i), plane.previousSetBit(i));
+                Assert.assertEquals(packed.previousClearBit(i), plane.previousClearBit(i));
+            }
+            Assert.assertTrue(packed.get(100, 3000).equal(plane.get(100, 3000)));
+        }
+    }
+
+    @Test
+    public void testCompressedLayoutTracksNonZeroValues() {
+        MultiBitSet compressed = new MultiBitSet(2, MultiBitSet.Layout.COMPRESSED);
+        for (int i = 0; i < 1000; i++)
+            compressed.set(i * 100000, 3);
+        Assert.assertTrue(compressed.size() < 1000 * 256, "size:" + compressed.size());
+
+        MultiBitSet runs = new MultiBitSet(4, MultiBitSet.Layout.COMPRESSED);
+        for (int i = 0; i < 1000000; i++)
+            runs.set(i, i < 500000 ? 5 : 9);
+        runs.optimize();
+        Assert.assertTrue(runs.size() < 64 * 128, "size:" + runs.size());
+        runs.set(250000, 1);
+        Assert.assertEquals(runs.get(249999), 5);
+        Assert.assertEquals(runs.get(250000), 1);
+        Assert.assertEquals(runs.get(250001), 5);
+        Assert.assertEquals(runs.nextClearBit(0), 1000000);
+        Assert.assertEquals(runs.cardinality(), 1000000);
+    }
+
+    @Test
+    public void testRangeSetOnAllLayouts() {
+        Random random = new Random(8);
+        MultiBitSet[] sets = new MultiBitSet[MultiBitSet.Layout.values().length + 1];
+        for (int i = 0; i < sets.length - 1; i++)
+            sets[i] = new MultiBitSet(3, MultiBitSet.Layout.values()[i]);
+        sets[sets.length - 1] = new ConcurrentMultiBitSet(3);
+        int[] expected = new int[400000];
+        //先写入足够多的单个值，让压缩布局中出现按字存储的块
+        for (int i = 0; i < 30000; i++) {
+            int index = random.nextInt(expected.length);
+            expected[index] = random.nextInt(8);
+            for (MultiBitSet set : sets)
+                set.set(index, expected[index]);
+        }
+        for (int round = 0; round < 300; round++) {
+            int from = random.nextInt(expected.length);
+            int to = Math.min(expected.length, from + (round % 3 == 0 ? random.nextInt(200000) : random.nextInt(300)));
+            int value = random.nextInt(3) == 0 ? 0 : random.nextInt(8);
+            for (int i = from; i < to; i++)
+                expected[i] = value;
+            for (MultiBitSet set : sets)
+                set.set(from, to, value);
+        }
+        for (MultiBitSet set : sets)
+            for (int i = 0; i < expected.length; i++)
+                Assert.assertEquals(set.get(i), expected[i], set.getLayout() + " index " + i);
+    }
 
+    @Test
+    public void testCompressedRangeSetKeepsConstantPagesSmall() {
+        MultiBitSet compressed = new MultiBitSet(4, MultiBitSet.Layout.COMPRESSED);
+        compressed.set(0, 100000000, 7);
+        compressed.set(30000000, 60000000, 2);
+        Assert.assertTrue(compressed.size() < 2000 * 128, "size:" + compressed.size());
+        compressed.set(12345, 9);
+        Assert.assertEquals(compressed.get(12344), 7);
+        Assert.assertEquals(compressed.get(12345), 9);
+        Assert.assertEquals(compressed.get(30000000), 2);
+        Assert.assertEquals(compressed.length(), 100000000);
+        Assert.assertEquals(compressed.nextClearBit(0), 100000000);
+        Assert.assertEquals(compressed.cardinality(), 100000000 - 1);
+        compressed.clear(0, 100000000);
+        Assert.assertEquals(compressed.length(), 0);
+        Assert.assertEquals(compressed.size(), 0);
+    }
 
+    @Test(expectedExceptions = IllegalArgumentException.class)
+    public void testValueOutOfRange() {
+        new MultiBitSet(2).set(0, 4);
+    }
+
+    @Test
+    public void testGrowableWidensAndCompacts() {
+        for (MultiBitSet.Layout layout : MultiBitSet.Layout.values()) {
+            MultiBitSet set = new MultiBitSet(1, layout);
+            set.setGrowable(true);
+            for (int i = 0; i < 1000; i++)
+                set.set(i * 7, i % 2);
+            set.set(3, 2);
+            Assert.assertEquals(set.getBitSize(), 2);
+            set.set(5000, 100);
+            Assert.assertEquals(set.getBitSize(), 7);
+            Assert.assertEquals(set.get(3), 2);
+            Assert.assertEquals(set.get(5000), 100);
+            for (int i = 0; i < 1000; i++)
+                Assert.assertEquals(set.get(i * 7), i % 2, layout + " index " + i * 7);
 
+            set.clear(5000);
+            Assert.assertEquals(set.compact(), 2);
+            set.clear(3);
+            Assert.assertEquals(set.compact(), 1);
+            for (int i = 0; i < 1000; i++)
+                Assert.assertEquals(set.get(i * 7), i % 2, layout + " index " + i * 7);
+        }
+    }
+
+    @Test
+    public void testGetAndSetDoNotAllocate() {
+        com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+        for (MultiBitSet.Layout layout : MultiBitSet.Layout.values()) {
+            MultiBitSet multiBitSet = new MultiBitSet(5, layout);
+            int n = 1 << 16;
+            //先写最大的索引，避免测量时底层数组扩容
+            multiBitSet.set(n - 1, 31);
+            long sum = 0;
+            for (int round = 0; round < 20; round++)
+                sum += getAndSet(multiBitSet, n);
+            long before = threadMXBean.getThreadAllocatedBytes(threadId);
+            for (int round = 0; round < 20; round++)
+                sum += getAndSet(multiBitSet, n);
+            long allocated = threadMXBean.getThreadAllocatedBytes(threadId) - before;
+            Assert.assertTrue(sum > 0);
+            Assert.assertTrue(allocated < 20L * n / 100,
+                    layout + " allocated " + (double) allocated / (20L * n) + " bytes per call");
+        }
+    }
+
+    private long getAndSet(MultiBitSet multiBitSet, int n) {
+        long sum = 0;
+        for (int i = 0; i < n; i++) {
+            multiBitSet.set(i, (i * 7) & 31);
+            sum += multiBitSet.get(i);
+        }
+        return sum;
+    }
+
+    @Test
+    public void testLogicalOperations() {
+        Random random = new Random(30);
+        int[] a = new int[70000];
+        int[] b = new int[90000];
+        int[] wide = new int[50000];
+        for (int i = 0; i < 20000; i++) {
+            a[random.nextInt(a.length)] = random.nextInt(16);
+            b[random.nextInt(b.length)] = random.nextInt(16);
+            wide[random.nextInt(wide.length)] = random.nextInt(64);
+        }
+        for (MultiBitSet.Layout layout : MultiBitSet.Layout.values()) {
+            for (MultiBitSet.Layout otherLayout : new MultiBitSet.Layout[]{MultiBitSet.Layout.PLANE, MultiBitSet.Layout.PAGED}) {
+                String message = layout + "/" + otherLayout;
+                MultiBitSet left = MultiBitSet.fromValues(a, 4, layout);
+                MultiBitSet right = MultiBitSet.fromValues(b, 4, otherLayout);
+
+                MultiBitSet and = MultiBitSet.and(left, right);
+                MultiBitSet or = MultiBitSet.or(left, right);
+                MultiBitSet xor = MultiBitSet.xor(left, right);
+                MultiBitSet andNot = MultiBitSet.andNot(left, right);
+                Assert.assertEquals(and.getLayout(), layout);
+                for (int i = 0; i < b.length + 10; i++) {
+                    int x = i < a.length ? a[i] : 0;
+                    int y = i < b.length ? b[i] : 0;
+                    Assert.assertEquals(and.get(i), x & y, message);
+                    Assert.assertEquals(or.get(i), x | y, message);
+                    Assert.assertEquals(xor.get(i), x ^ y, message);
+                    Assert.assertEquals(andNot.get(i), x & ~y, message);
+                }
+                //结果是新的集合，原来的集合不变
+                for (int i = 0; i < a.length; i++)
+                    Assert.assertEquals(left.get(i), a[i], message);
+
+                left.xor(left);
+                Assert.assertEquals(left.length(), 0, message);
+
+                MultiBitSet narrow = MultiBitSet.fromValues(a, 4, layout);
+                MultiBitSet wider = MultiBitSet.fromValues(wide, 6, otherLayout);
+                try {
+                    narrow.or(wider);
+                    Assert.fail(message);
+                } catch (IllegalArgumentException e) {
+                }
+                MultiBitSet extendedAnd = MultiBitSet.and(narrow, wider, true);
+                Assert.assertEquals(extendedAnd.getBitSize(), 4, message);
+                narrow.or(wider, true);
+                Assert.assertEquals(narrow.getBitSize(), 6, message);
+                MultiBitSet widerAndNarrow = MultiBitSet.fromValues(wide, 6, otherLayout);
+                widerAndNarrow.and(MultiBitSet.fromValues(a, 4, layout), true);
+                for (int i = 0; i < a.length; i++) {
+                    int y = i < wide.length ? wide[i] : 0;
+                    Assert.assertEquals(narrow.get(i), a[i] | y, message);
+                    Assert.assertEquals(extendedAnd.get(i), a[i] & y, message);
+                    Assert.assertEquals(widerAndNarrow.get(i), a[i] & y, message);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testReadLegacySerializedFile() throws Exception {
+        //由按维存储之前的版本通过writeObjectToFileSystem写入
+        InputStream in = getClass().getResourceAsStream("/legacy-multibitset.ser");
+        MultiBitSet set = MultiBitSet.initFromInputStream(in);
+        in.close();
+        Assert.assertEquals(set.getBitSize(), 3);
+        Assert.assertEquals(set.getLayout(), MultiBitSet.Layout.PLANE);
+        Assert.assertEquals(set.get(0), 1);
+        Assert.assertEquals(set.get(1), 6);
+        Assert.assertEquals(set.get(5), 3);
+        Assert.assertEquals(set.get(100), 7);
+        Assert.assertEquals(set.get(1000), 4);
+        Assert.assertEquals(set.get(2), 0);
+        Assert.assertEquals(set.length(), 1001);
+        set.set(2, 5);
+        Assert.assertEquals(set.get(2), 5);
+    }
+
+    @Test
+    public void testSerializationRoundTrip() throws Exception {
+        for (MultiBitSet.Layout layout : MultiBitSet.Layout.values()) {
+            MultiBitSet set = new MultiBitSet(5, layout);
+            set.set(3, 17);
+            set.set(70000, 31);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            set.writeObject(out);
+            MultiBitSet read = MultiBitSet.initFromInputStream(new ByteArrayInputStream(out.toByteArray()));
+            Assert.assertEquals(read.getLayout(), layout);
+            Assert.assertTrue(read.equal(set));
+            Assert.assertEquals(read.get(70000), 31);
+        }
+    }
 }
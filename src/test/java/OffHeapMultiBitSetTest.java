@@ -0,0 +1,48 @@
+import org.lepdou.common.MultiBitSet;
+import org.lepdou.common.OffHeapMultiBitSet;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+
+public class OffHeapMultiBitSetTest {
+
+    @Test
+    public void testBehavesLikeHeapSet() {
+        Random random = new Random(3);
+        MultiBitSet heap = new MultiBitSet(3, MultiBitSet.Layout.PACKED);
+        OffHeapMultiBitSet offHeap = new OffHeapMultiBitSet(3);
+        try {
+            for (int i = 0; i < 5000; i++) {
+                //跨越多个段，并留下未分配的段
+                int index = random.nextInt(2) == 0 ? random.nextInt(10000) : 3000000 + random.nextInt(10000);
+                int value = random.nextInt(8);
+                heap.set(index, value);
+                offHeap.set(index, value);
+            }
+            Assert.assertEquals(offHeap.length(), heap.length());
+            Assert.assertEquals(offHeap.cardinality(), heap.cardinality());
+            Assert.assertTrue(offHeap.equal(heap));
+            Assert.assertEquals(offHeap.hashCode(), heap.hashCode());
+            for (int i = heap.nextSetBit(0); i >= 0; i = heap.nextSetBit(i + 1)) {
+                Assert.assertEquals(offHeap.get(i), heap.get(i));
+                Assert.assertEquals(offHeap.nextSetBit(i), i);
+            }
+            Assert.assertEquals(offHeap.nextSetBit(20000), heap.nextSetBit(20000));
+            Assert.assertEquals(offHeap.previousSetBit(2000000), heap.previousSetBit(2000000));
+            Assert.assertEquals(offHeap.nextClearBit(3000000), heap.nextClearBit(3000000));
+            Assert.assertTrue(offHeap.get(3000000, 3010000).equal(heap.get(3000000, 3010000)));
+        } finally {
+            offHeap.close();
+        }
+    }
+
+    @Test(expectedExceptions = IllegalStateException.class)
+    public void testAccessAfterClose() {
+        OffHeapMultiBitSet offHeap = new OffHeapMultiBitSet(2);
+        offHeap.set(10, 3);
+        offHeap.close();
+        offHeap.close();
+        offHeap.get(10);
+    }
+}
@@ -0,0 +1,96 @@
+import org.lepdou.common.MultiBitSet;
+import org.lepdou.common.SingleWriterMultiBitSet;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class SingleWriterMultiBitSetTest {
+
+    @Test
+    public void testBehavesLikePagedSet() {
+        Random random = new Random(16);
+        MultiBitSet paged = new MultiBitSet(5, MultiBitSet.Layout.PAGED);
+        SingleWriterMultiBitSet single = new SingleWriterMultiBitSet(5);
+        for (int i = 0; i < 5000; i++) {
+            int index = random.nextInt(2) == 0 ? random.nextInt(10000) : 200000 + random.nextInt(10000);
+            int value = random.nextInt(3) == 0 ? 0 : random.nextInt(32);
+            paged.set(index, value);
+            single.set(index, value);
+        }
+        paged.set(5000, 70000, 9);
+        single.set(5000, 70000, 9);
+        Assert.assertEquals(single.length(), paged.length());
+        Assert.assertEquals(single.cardinality(), paged.cardinality());
+        Assert.assertEquals(single.hashCode(), paged.hashCode());
+        Assert.assertTrue(single.equal(paged));
+        for (int i = 0; i < 220000; i++) {
+            Assert.assertEquals(single.get(i), paged.get(i));
+            Assert.assertEquals(single.nextSetBit(i), paged.nextSetBit(i));
+            Assert.assertEquals(single.nextClearBit(i), paged.nextClearBit(i));
+            Assert.assertEquals(single.previousSetBit(i), paged.previousSetBit(i));
+            Assert.assertEquals(single.previousClearBit(i), paged.previousClearBit(i));
+        }
+        //按维读取的查询
+        Assert.assertEquals(single.histogram(), paged.histogram());
+        Assert.assertEquals(single.between(3, 20), paged.between(3, 20));
+        Assert.assertEquals(single.sum(), paged.sum());
+        Assert.assertEquals(single.quantile(0.9), paged.quantile(0.9));
+    }
+
+    @Test
+    public void testSnapshot() {
+        SingleWriterMultiBitSet single = new SingleWriterMultiBitSet(4);
+        single.set(10, 7);
+        single.set(300000, 12);
+        MultiBitSet snapshot = single.snapshot();
+        Assert.assertEquals(single.getLayout(), MultiBitSet.Layout.PAGED);
+        Assert.assertEquals(snapshot.getLayout(), MultiBitSet.Layout.PAGED);
+        single.set(10, 1);
+        single.set(300000, 0);
+        Assert.assertEquals(snapshot.get(10), 7);
+        Assert.assertEquals(snapshot.get(300000), 12);
+        Assert.assertEquals(snapshot.length(), 300001);
+        try {
+            snapshot.set(10, 3);
+            Assert.fail();
+        } catch (UnsupportedOperationException e) {
+        }
+    }
+
+    @Test
+    public void testReadersNeverSeeTornValues() throws InterruptedException {
+        final SingleWriterMultiBitSet set = new SingleWriterMultiBitSet(6);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicReference<String> error = new AtomicReference<String>();
+        Thread writer = new Thread() {
+            public void run() {
+                for (int round = 0; round < 100000; round++)
+                    for (int i = 0; i < 64; i += 3)
+                        set.set(i, (round + i) % 2 == 0 ? 0b101010 : 0b010101);
+                stop.set(true);
+            }
+        };
+        Thread[] readers = new Thread[3];
+        for (int t = 0; t < readers.length; t++) {
+            readers[t] = new Thread() {
+                public void run() {
+                    while (!stop.get())
+                        for (int i = 0; i < 64; i += 3) {
+                            int value = set.get(i);
+                            if (value != 0 && value != 0b101010 && value != 0b010101)
+                                error.set("index " + i + " value " + value);
+                        }
+                }
+            };
+            readers[t].start();
+        }
+        writer.start();
+        writer.join();
+        for (Thread reader : readers)
+            reader.join();
+        Assert.assertNull(error.get());
+    }
+}
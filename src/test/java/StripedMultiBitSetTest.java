@@ -0,0 +1,96 @@
+import org.lepdou.common.MultiBitSet;
+import org.lepdou.common.StripedMultiBitSet;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class StripedMultiBitSetTest {
+
+    @Test
+    public void testBehavesLikeMultiBitSet() {
+        Random random = new Random(13);
+        for (int stripes : new int[]{1, 3, 16}) {
+            MultiBitSet plain = new MultiBitSet(4);
+            StripedMultiBitSet striped = new StripedMultiBitSet(4, stripes);
+            for (int i = 0; i < 3000; i++) {
+                int index = random.nextInt(60000);
+                int value = random.nextInt(3) == 0 ? 0 : random.nextInt(16);
+                if (i % 100 == 0) {
+                    int to = index + random.nextInt(5000);
+                    striped.set(index, to, value);
+                    for (int j = index; j < to; j++)
+                        plain.set(j, value);
+                } else {
+                    striped.set(index, value);
+                    plain.set(index, value);
+                }
+            }
+            striped.set(5, 1, 70000, 123456);
+            plain.set(5, 1, 70000, 123456);
+            Assert.assertEquals(striped.length(), plain.length());
+            Assert.assertEquals(striped.cardinality(), plain.cardinality());
+            for (int i = 0; i < 130000; i++) {
+                Assert.assertEquals(striped.get(i), plain.get(i));
+                Assert.assertEquals(striped.nextSetBit(i), plain.nextSetBit(i), "nextSetBit " + i);
+                Assert.assertEquals(striped.nextClearBit(i), plain.nextClearBit(i), "nextClearBit " + i);
+                Assert.assertEquals(striped.previousSetBit(i), plain.previousSetBit(i), "previousSetBit " + i);
+                Assert.assertEquals(striped.previousClearBit(i), plain.previousClearBit(i), "previousClearBit " + i);
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentWritersOnDifferentStripes() throws InterruptedException {
+        final StripedMultiBitSet set = new StripedMultiBitSet(3, 8);
+        final int threads = 8;
+        final AtomicReference<String> error = new AtomicReference<String>();
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int value = t % 7 + 1;
+            final int offset = t;
+            workers[t] = new Thread() {
+                public void run() {
+                    //每个线程写自己的余数类，索引交错分布在所有分段上
+                    for (int i = offset; i < 200000; i += threads)
+                        set.set(i, value);
+                    set.set(value, new int[]{offset + 300000, offset + 400000});
+                    for (int i = offset; i < 200000; i += threads)
+                        if (set.get(i) != value)
+                            error.set("index " + i + " value " + set.get(i));
+                }
+            };
+            workers[t].start();
+        }
+        for (Thread worker : workers)
+            worker.join();
+        Assert.assertNull(error.get());
+        for (int i = 0; i < 200000; i++)
+            Assert.assertEquals(set.get(i), i % threads % 7 + 1);
+        for (int t = 0; t < threads; t++) {
+            Assert.assertEquals(set.get(t + 300000), t % 7 + 1);
+            Assert.assertEquals(set.get(t + 400000), t % 7 + 1);
+        }
+    }
+
+    @Test
+    public void testCopyFromAndToMultiBitSet() {
+        Random random = new Random(14);
+        MultiBitSet plain = new MultiBitSet(4);
+        for (int i = 0; i < 3000; i++)
+            plain.set(random.nextInt(60000), random.nextInt(16));
+        StripedMultiBitSet striped = new StripedMultiBitSet(plain, 4);
+        Assert.assertEquals(striped.getBitSize(), 4);
+        Assert.assertTrue(striped.toMultiBitSet().equal(plain));
+        striped.set(100, 3);
+        Assert.assertNotEquals(plain.get(100), 3);
+        plain.set(100, 3);
+        Assert.assertTrue(striped.toMultiBitSet().equal(plain));
+        for (int[] range : new int[][]{{0, 0}, {0, 1000}, {1000, 5000}, {1500, 50123}, {59000, 70000}}) {
+            MultiBitSet expected = plain.get(range[0], range[1]);
+            MultiBitSet actual = striped.get(range[0], range[1]);
+            Assert.assertTrue(actual.equal(expected), range[0] + "," + range[1]);
+        }
+    }
+}